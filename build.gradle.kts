@@ -20,6 +20,8 @@ plugins {
     id("org.jetbrains.changelog") version "2.2.0"
     // Gradle Qodana Plugin
     id("org.jetbrains.qodana") version "0.1.13"
+    // JMH Plugin
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = properties("pluginGroup").get()
@@ -36,6 +38,34 @@ dependencies {
 
     // should be increased only when minimum supported IntelliJ is increased
     compileOnly("org.jetbrains.kotlinx:kotlinx-serialization-core:1.5.0")
+    compileOnly("org.jetbrains.kotlinx:kotlinx-serialization-json:1.5.0")
+
+    // the IDE provides the Kotlin standard library to the plugin, but not to the benchmarks
+    jmh(kotlin("stdlib"))
+}
+
+// The benchmarks run outside the IDE, so they need the platform classes the plugin is compiled against
+configurations.jmhImplementation {
+    extendsFrom(configurations.compileOnly.get())
+}
+
+// End-to-end benchmarks, run against an embedded SSH server inside a headless IDE with ./gradlew e2eBenchmark
+sourceSets {
+    create("e2e") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+// the IDE test framework is added to the test configurations and set up for every Test task by the IntelliJ plugin
+configurations["e2eImplementation"].extendsFrom(configurations.testImplementation.get(), configurations.compileOnly.get())
+configurations["e2eRuntimeOnly"].extendsFrom(configurations.testRuntimeOnly.get())
+
+dependencies {
+    "e2eImplementation"("org.apache.sshd:sshd-core:2.12.0")
+    "e2eImplementation"("org.apache.sshd:sshd-sftp:2.12.0")
+    "e2eImplementation"("org.apache.sshd:sshd-scp:2.12.0")
+    "e2eImplementation"("junit:junit:4.13.2")
 }
 
 // Set the JVM language level used to build the project - Java 17 for 2022.2+.
@@ -60,6 +90,21 @@ changelog {
     repositoryUrl = properties("pluginRepositoryUrl")
 }
 
+// The benchmarks exercise internal classes of the plugin
+kotlin.target.compilations.named("jmh") {
+    associateWith(kotlin.target.compilations.getByName("main"))
+}
+
+// Configure JMH Plugin - read more: https://github.com/melix/jmh-gradle-plugin
+// Run the benchmarks with ./gradlew jmh, or a subset of them with ./gradlew jmh -PjmhIncludes=ContentCopyBenchmark
+jmh {
+    jmhVersion = "1.37"
+    includes = providers.gradleProperty("jmhIncludes").map { listOf(it) }.orElse(emptyList())
+    resultFormat = "JSON"
+    profilers = listOf("gc")
+    resultsFile = layout.buildDirectory.file("reports/jmh/results.json")
+}
+
 // Configure Gradle Qodana Plugin - read more: https://github.com/JetBrains/gradle-qodana-plugin
 qodana {
     cachePath = provider { file(".qodana").canonicalPath }
@@ -69,6 +114,36 @@ qodana {
 }
 
 tasks {
+    // Keeps the results of every plugin version side by side, so they can be compared across releases
+    register<Copy>("jmhResults") {
+        group = "benchmark"
+        description = "Runs the benchmarks and stores their JSON results under the current plugin version."
+        dependsOn(named("jmh"))
+        from(layout.buildDirectory.file("reports/jmh/results.json"))
+        into(layout.projectDirectory.dir("benchmarks"))
+        rename { "results-${properties("pluginVersion").get()}.json" }
+    }
+
+    register<Test>("e2eBenchmark") {
+        group = "benchmark"
+        description = "Measures the throughput of every protocol and compression policy against an embedded SSH server."
+        testClassesDirs = sourceSets["e2e"].output.classesDirs
+        classpath = sourceSets["e2e"].runtimeClasspath
+        useJUnit()
+        maxHeapSize = "2g"
+        outputs.upToDateWhen { false }
+        testLogging.showStandardStreams = true
+        // ./gradlew e2eBenchmark -Pe2eProtocols=SFTP -Pe2eCompression=OFF,ADAPTIVE -Pe2eWorkers=1,4 -Pe2eRtt=1,50,200
+        listOf(
+            "e2eProtocols" to "protocols", "e2eCompression" to "compression", "e2eWorkers" to "workers",
+            "e2eBatchSizes" to "batchSizes", "e2eRtt" to "rtt", "e2eJitter" to "jitter", "e2eBandwidth" to "bandwidth",
+            "e2eStallProbability" to "stallProbability", "e2eStallMillis" to "stallMillis"
+        ).forEach { (property, key) ->
+            providers.gradleProperty(property).orNull?.let { systemProperty("sourcesync.e2e.$key", it) }
+        }
+        systemProperty("sourcesync.e2e.results", layout.buildDirectory.file("reports/e2e/results.json").get().asFile.path)
+    }
+
     wrapper {
         gradleVersion = properties("gradleVersion").get()
     }
@@ -0,0 +1,43 @@
+package org.wavescale.sourcesync.benchmarks
+
+import java.nio.file.Path
+import org.apache.sshd.server.SshServer
+import org.apache.sshd.server.auth.password.PasswordAuthenticator
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider
+import org.apache.sshd.server.shell.ProcessShellCommandFactory
+import org.apache.sshd.scp.server.ScpCommandFactory
+import org.apache.sshd.sftp.server.SftpSubsystemFactory
+
+const val BENCHMARK_USER = "sourcesync"
+const val BENCHMARK_PASSWORD = "sourcesync"
+
+/**
+ * An SSH server running in the benchmark's own process, on a free port of the loopback interface. It serves SFTP and
+ * SCP on the local file system, and runs any other command, like `tar` or `python3`, as a local process, so every
+ * transfer mode of the plugin can be measured without a network or a remote machine.
+ */
+class EmbeddedSshServer(workDir: Path) : AutoCloseable {
+    private val server = SshServer.setUpDefaultServer().apply {
+        host = "127.0.0.1"
+        port = 0
+        keyPairProvider = SimpleGeneratorHostKeyProvider(workDir.resolve("hostkey.ser"))
+        passwordAuthenticator = PasswordAuthenticator { username, password, _ ->
+            username == BENCHMARK_USER && password == BENCHMARK_PASSWORD
+        }
+        subsystemFactories = listOf(SftpSubsystemFactory())
+        commandFactory = ScpCommandFactory.Builder()
+            .withDelegate(ProcessShellCommandFactory.INSTANCE)
+            .build()
+    }
+
+    val port: Int get() = server.port
+
+    fun start(): EmbeddedSshServer {
+        server.start()
+        return this
+    }
+
+    override fun close() {
+        server.stop(true)
+    }
+}
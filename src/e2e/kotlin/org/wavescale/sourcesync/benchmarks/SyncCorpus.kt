@@ -0,0 +1,54 @@
+package org.wavescale.sourcesync.benchmarks
+
+import java.nio.file.Files
+import java.nio.file.Path
+import kotlin.random.Random
+
+private const val FILES_PER_DIRECTORY = 100
+private const val BLOCK_SIZE = 1024 * 1024
+
+/**
+ * A set of synthetic files to upload. Every other file is source like text that compresses well, the others are random
+ * bytes that don't compress at all, so the compression policies have something to choose from.
+ *
+ * The files are uploaded in syncs of each of the [batchSizes], the first files of the corpus every time, to show how
+ * the fixed cost of a sync spreads over the files it uploads.
+ */
+enum class SyncCorpus(val fileCount: Int, val fileSize: Int, val batchSizes: List<Int> = listOf(fileCount)) {
+    TINY(10_000, 1024, listOf(1, 10, 100, 1_000, 10_000)),
+    MEDIUM(100, 1024 * 1024),
+    HUGE(2, 256 * 1024 * 1024);
+
+    /**
+     * Writes the files of the corpus under [root] and returns them.
+     */
+    fun generate(root: Path): List<Path> {
+        val random = Random(fileSize)
+        val block = minOf(fileSize, BLOCK_SIZE)
+        val text = sourceLikeText(block)
+        return (0 until fileCount).map { i ->
+            val directory = Files.createDirectories(root.resolve("dir${i / FILES_PER_DIRECTORY}"))
+            val compressible = i % 2 == 0
+            val file = directory.resolve("file$i.${if (compressible) "kt" else "bin"}")
+            Files.newOutputStream(file).use { out ->
+                var written = 0
+                while (written < fileSize) {
+                    val len = minOf(block, fileSize - written)
+                    out.write(if (compressible) text else random.nextBytes(len), 0, len)
+                    written += len
+                }
+            }
+            file
+        }
+    }
+
+    private fun sourceLikeText(size: Int): ByteArray {
+        val text = StringBuilder(size + 128)
+        var line = 0
+        while (text.length < size) {
+            text.append("    val value").append(line).append(" = compute(").append(line * 31 % 977).append(", \"item-").append(line).append("\")\n")
+            line++
+        }
+        return text.substring(0, size).toByteArray()
+    }
+}
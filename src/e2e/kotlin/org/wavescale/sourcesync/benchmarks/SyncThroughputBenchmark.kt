@@ -0,0 +1,266 @@
+package org.wavescale.sourcesync.benchmarks
+
+import com.intellij.openapi.components.service
+import com.intellij.openapi.progress.EmptyProgressIndicator
+import com.intellij.openapi.util.io.NioFiles
+import com.intellij.testFramework.fixtures.BasePlatformTestCase
+import java.lang.management.ManagementFactory
+import java.nio.file.Files
+import java.nio.file.Path
+import kotlin.io.path.fileSize
+import kotlin.io.path.isRegularFile
+import kotlinx.serialization.SerialName
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.double
+import kotlinx.serialization.json.jsonArray
+import kotlinx.serialization.json.jsonObject
+import kotlinx.serialization.json.jsonPrimitive
+import org.wavescale.sourcesync.api.Utils
+import org.wavescale.sourcesync.configurations.AuthenticationType
+import org.wavescale.sourcesync.configurations.BaseSyncConfiguration
+import org.wavescale.sourcesync.configurations.CompressionPolicy
+import org.wavescale.sourcesync.configurations.ScpSyncConfiguration
+import org.wavescale.sourcesync.configurations.SshSyncConfiguration
+import org.wavescale.sourcesync.services.StatsService
+import org.wavescale.sourcesync.synchronizer.SCPFileSynchronizer
+import org.wavescale.sourcesync.synchronizer.SFTPFileSynchronizer
+
+private val MEGABYTE = 1024.0 * 1024
+private val DEFAULT_WORKERS = listOf(1, 2, 4, 8, 16)
+
+/**
+ * Uploads synthetic corpora to an [EmbeddedSshServer] through the real synchronizers, with every protocol and
+ * compression policy, and reports files per second, MiB per second, the wall time per file, per file latency and
+ * the CPU time used by the whole process, client and server side together.
+ *
+ * Runs fully offline with `./gradlew e2eBenchmark`. Every combination is run with 1, 2, 4, 8 and 16 parallel uploads,
+ * or the comma separated counts of the `e2eWorkers` Gradle property. The runs can be narrowed down with the
+ * `e2eProtocols` and `e2eCompression` properties, and a single corpus selected with `--tests '*testTinyFiles'`. The
+ * tiny files are uploaded in batches of 1, 10, 100, 1000 and 10000 files, or of the sizes set with `e2eBatchSizes`.
+ * With `-Pe2eRtt=1,50,200` every run is repeated through a [WanEmulationProxy] for each of the round trip times, with
+ * the jitter, bandwidth and stalls of the `e2eJitter`, `e2eBandwidth`, `e2eStallProbability` and `e2eStallMillis`
+ * properties.
+ * Every run is printed as it finishes and all of them are written as JSON to `build/reports/e2e/results.json`.
+ */
+class SyncThroughputBenchmark : BasePlatformTestCase() {
+    private lateinit var workDir: Path
+    private lateinit var server: EmbeddedSshServer
+
+    override fun runInDispatchThread() = false
+
+    override fun setUp() {
+        super.setUp()
+        workDir = Files.createTempDirectory("sourcesync-e2e")
+        server = EmbeddedSshServer(workDir).start()
+    }
+
+    override fun tearDown() {
+        try {
+            server.close()
+            NioFiles.deleteRecursively(workDir)
+        } finally {
+            super.tearDown()
+        }
+    }
+
+    fun testTinyFiles() = benchmark(SyncCorpus.TINY)
+
+    fun testMediumFiles() = benchmark(SyncCorpus.MEDIUM)
+
+    fun testHugeFiles() = benchmark(SyncCorpus.HUGE)
+
+    private fun benchmark(corpus: SyncCorpus) {
+        val localRoot = workDir.resolve("local").resolve(corpus.name.lowercase())
+        val files = corpus.generate(localRoot)
+        val src = files.map { Pair(it.toString(), Utils.relativeToProjectPath(it, localRoot)) }
+
+        for (link in links()) {
+            val proxy = link?.let { WanEmulationProxy(server.port, it).start() }
+            try {
+                for (protocol in selected("sourcesync.e2e.protocols", listOf("SFTP", "SCP"))) {
+                    for (policy in selected("sourcesync.e2e.compression", CompressionPolicy.values().map { it.name })) {
+                        for (workers in numbers("sourcesync.e2e.workers").ifEmpty { DEFAULT_WORKERS }) {
+                            for (batchSize in batchSizesOf(corpus)) {
+                                val remoteRoot = Files.createDirectories(workDir.resolve("remote"))
+                                val configuration = configurationFor(
+                                    protocol, CompressionPolicy.valueOf(policy), workers, remoteRoot, corpus, proxy?.port ?: server.port
+                                )
+                                val result = syncOnce(corpus, configuration, src.take(batchSize), link)
+                                assertEquals(
+                                    "files uploaded by $protocol with $policy and $workers workers",
+                                    batchSize.toLong() * corpus.fileSize to batchSize,
+                                    uploadedSize(remoteRoot)
+                                )
+                                NioFiles.deleteRecursively(remoteRoot)
+                                record(result)
+                            }
+                        }
+                    }
+                }
+            } finally {
+                proxy?.close()
+            }
+        }
+    }
+
+    /**
+     * The batch sizes of [corpus], or the ones of the `e2eBatchSizes` property that fit in the corpus for the corpora
+     * uploaded in batches.
+     */
+    private fun batchSizesOf(corpus: SyncCorpus): List<Int> {
+        if (corpus.batchSizes.size == 1) {
+            return corpus.batchSizes
+        }
+        return numbers("sourcesync.e2e.batchSizes").filter { it in 1..corpus.fileCount }.ifEmpty { corpus.batchSizes }
+    }
+
+    /**
+     * The emulated links to run through, or only the direct connection to the server when no round trip time is set.
+     */
+    private fun links(): List<WanProfile?> {
+        return numbers("sourcesync.e2e.rtt").map {
+            WanProfile(
+                rttMillis = it,
+                jitterMillis = System.getProperty("sourcesync.e2e.jitter")?.toIntOrNull() ?: 0,
+                bandwidthKiB = System.getProperty("sourcesync.e2e.bandwidth")?.toIntOrNull() ?: 0,
+                stallProbability = System.getProperty("sourcesync.e2e.stallProbability")?.toDoubleOrNull() ?: 0.0,
+                stallMillis = System.getProperty("sourcesync.e2e.stallMillis")?.toIntOrNull() ?: 0
+            )
+        }.ifEmpty { listOf(null) }
+    }
+
+    private fun syncOnce(corpus: SyncCorpus, configuration: BaseSyncConfiguration, src: List<Pair<String, Path>>, link: WanProfile?): RunResult {
+        val synchronizer = when (configuration) {
+            is SshSyncConfiguration -> SFTPFileSynchronizer(configuration, project)
+            is ScpSyncConfiguration -> SCPFileSynchronizer(configuration, project)
+        }
+        val cpu = ManagementFactory.getOperatingSystemMXBean() as com.sun.management.OperatingSystemMXBean
+        val cpuBefore = cpu.processCpuTime
+        val started = System.nanoTime()
+        assertTrue("connected to the embedded server", synchronizer.connect())
+        try {
+            synchronizer.syncFiles(src, EmptyProgressIndicator())
+        } finally {
+            synchronizer.disconnect()
+        }
+        val seconds = (System.nanoTime() - started) / 1e9
+        val cpuSeconds = (cpu.processCpuTime - cpuBefore) / 1e9
+
+        val latency = fileLatencyOf(configuration)
+        val files = src.size
+        val bytes = files.toLong() * corpus.fileSize
+        return RunResult(
+            corpus = corpus.name,
+            protocol = configuration.protocol.name,
+            compression = configuration.compressionPolicy.name,
+            workers = configuration.uploadWorkers,
+            link = link?.toString() ?: "direct",
+            files = files,
+            bytes = bytes,
+            seconds = seconds,
+            filesPerSecond = files / seconds,
+            mebibytesPerSecond = bytes / MEGABYTE / seconds,
+            millisPerFile = seconds * 1000 / files,
+            latencyP50Millis = latency?.get("p50")?.jsonPrimitive?.double ?: 0.0,
+            latencyP99Millis = latency?.get("p99")?.jsonPrimitive?.double ?: 0.0,
+            cpuSeconds = cpuSeconds
+        )
+    }
+
+    /**
+     * Every run gets a connection of its own, so it starts with a new SSH session and its own statistics.
+     */
+    private fun configurationFor(
+        protocol: String,
+        policy: CompressionPolicy,
+        workers: Int,
+        remoteRoot: Path,
+        corpus: SyncCorpus,
+        port: Int
+    ): BaseSyncConfiguration {
+        val configuration = if (protocol == "SCP") ScpSyncConfiguration() else SshSyncConfiguration()
+        return configuration.apply {
+            name = "e2e-${corpus.name}-$protocol-${policy.name}-$workers-${System.nanoTime()}"
+            hostname = "127.0.0.1"
+            port = port.toString()
+            username = BENCHMARK_USER
+            authenticationType = AuthenticationType.PASSWORD
+            password = BENCHMARK_PASSWORD
+            workspaceBasePath = remoteRoot.toString()
+            compressionPolicy = policy
+            uploadWorkers = workers
+        }
+    }
+
+    private fun fileLatencyOf(configuration: BaseSyncConfiguration) =
+        Json.parseToJsonElement(service<StatsService>().exportJson()).jsonObject["connections"]?.jsonArray
+            ?.map { it.jsonObject }
+            ?.firstOrNull { it["name"]?.jsonPrimitive?.content == configuration.name }
+            ?.get("file_latency_ms")?.jsonObject
+
+    private fun uploadedSize(remoteRoot: Path): Pair<Long, Int> = Files.walk(remoteRoot).use { paths ->
+        val files = paths.filter { it.isRegularFile() }.toList()
+        Pair(files.sumOf { it.fileSize() }, files.size)
+    }
+
+    private fun selected(property: String, all: List<String>): List<String> =
+        System.getProperty(property)?.split(',')?.map { it.trim().uppercase() }?.filter { it in all }?.ifEmpty { null } ?: all
+
+    private fun numbers(property: String): List<Int> =
+        System.getProperty(property)?.split(',')?.mapNotNull { it.trim().toIntOrNull() }.orEmpty()
+
+    private fun record(result: RunResult) {
+        println(
+            "%-6s %-4s %-8s %2d workers %-12s %5d files %8.1f files/s %8.1f MiB/s %8.2f ms/file  p50 %8.2f ms  p99 %8.2f ms  cpu %6.2f s".format(
+                result.corpus, result.protocol, result.compression, result.workers, result.link, result.files, result.filesPerSecond,
+                result.mebibytesPerSecond, result.millisPerFile, result.latencyP50Millis, result.latencyP99Millis, result.cpuSeconds
+            )
+        )
+        results.add(result)
+        val report = Path.of(System.getProperty("sourcesync.e2e.results", "build/reports/e2e/results.json"))
+        Files.createDirectories(report.parent)
+        Files.writeString(report, json.encodeToString(results))
+    }
+
+    @Serializable
+    private data class RunResult(
+        @SerialName("corpus")
+        val corpus: String,
+        @SerialName("protocol")
+        val protocol: String,
+        @SerialName("compression")
+        val compression: String,
+        @SerialName("workers")
+        val workers: Int,
+        @SerialName("link")
+        val link: String,
+        @SerialName("files")
+        val files: Int,
+        @SerialName("bytes")
+        val bytes: Long,
+        @SerialName("seconds")
+        val seconds: Double,
+        @SerialName("files_per_second")
+        val filesPerSecond: Double,
+        @SerialName("mib_per_second")
+        val mebibytesPerSecond: Double,
+        // wall time of the whole sync divided by its files, connection setup and listings included
+        @SerialName("ms_per_file")
+        val millisPerFile: Double,
+        @SerialName("latency_p50_ms")
+        val latencyP50Millis: Double,
+        @SerialName("latency_p99_ms")
+        val latencyP99Millis: Double,
+        @SerialName("cpu_seconds")
+        val cpuSeconds: Double
+    )
+
+    companion object {
+        private val json = Json { prettyPrint = true }
+
+        // shared by the corpora, so the report of a whole run holds all of them
+        private val results = ArrayList<RunResult>()
+    }
+}
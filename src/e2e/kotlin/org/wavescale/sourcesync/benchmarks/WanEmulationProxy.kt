@@ -0,0 +1,182 @@
+package org.wavescale.sourcesync.benchmarks
+
+import java.io.IOException
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketException
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.random.Random
+
+private const val SEGMENT_SIZE = 32 * 1024
+
+// segments in flight in each direction, the equivalent of the socket buffers of a real link
+private const val SEGMENTS_IN_FLIGHT = 512
+
+/**
+ * How the emulated link between the client and the server behaves.
+ *
+ * @property rttMillis round trip time, half of it added to every segment in each direction
+ * @property jitterMillis up to this much is added at random to the delay of every segment
+ * @property bandwidthKiB most KiB per second sent in each direction, 0 for no limit
+ * @property stallProbability chance of every segment to hold up the link for [stallMillis], like a lost packet does
+ * @property stallMillis how long a stall holds up the link
+ */
+data class WanProfile(
+    val rttMillis: Int = 0,
+    val jitterMillis: Int = 0,
+    val bandwidthKiB: Int = 0,
+    val stallProbability: Double = 0.0,
+    val stallMillis: Int = 0
+) {
+    override fun toString() = "rtt ${rttMillis}ms" +
+        (if (jitterMillis > 0) " ±${jitterMillis}ms" else "") +
+        (if (bandwidthKiB > 0) " ${bandwidthKiB}KiB/s" else "") +
+        (if (stallProbability > 0) " stall ${stallProbability}x${stallMillis}ms" else "")
+}
+
+/**
+ * A TCP proxy on a free port of the loopback interface that forwards every connection to [targetPort] through an
+ * emulated wide area link, so the round trips the transfer modes wait for cost what they cost on a real network.
+ *
+ * Data is forwarded in segments. Every segment is delayed by half the round trip time plus the jitter, leaves no
+ * sooner than the bandwidth allows and never overtakes the segment before it, so a stall holds up everything behind
+ * it like a retransmission does. The delays of each direction come from their own seeded generator, so runs with the
+ * same profile see the same link.
+ */
+class WanEmulationProxy(private val targetPort: Int, private val profile: WanProfile) : AutoCloseable {
+    private val serverSocket = ServerSocket(0, 50, InetAddress.getLoopbackAddress())
+    private val sockets = CopyOnWriteArrayList<Socket>()
+
+    val port: Int get() = serverSocket.localPort
+
+    fun start(): WanEmulationProxy {
+        thread(isDaemon = true, name = "WAN proxy acceptor") {
+            var connections = 0
+            while (true) {
+                val client = try {
+                    serverSocket.accept()
+                } catch (e: SocketException) {
+                    // closed
+                    break
+                }
+                val server = try {
+                    Socket().apply { connect(InetSocketAddress(InetAddress.getLoopbackAddress(), targetPort)) }
+                } catch (e: IOException) {
+                    // only this client fails, like a refused connection would, the next ones may still get through
+                    client.closeQuietly()
+                    continue
+                }
+                val connection = listOf(client, server)
+                connection.forEach {
+                    it.tcpNoDelay = true
+                    sockets.add(it)
+                }
+                // once both directions are done the connection is closed and forgotten
+                val directionsLeft = AtomicInteger(2)
+                val onDone = {
+                    if (directionsLeft.decrementAndGet() == 0) {
+                        connection.forEach { it.closeQuietly() }
+                        sockets.removeAll(connection)
+                    }
+                }
+                forward(client, server, Random(2 * connections), onDone)
+                forward(server, client, Random(2 * connections + 1), onDone)
+                connections++
+            }
+        }
+        return this
+    }
+
+    override fun close() {
+        serverSocket.close()
+        sockets.forEach { it.closeQuietly() }
+    }
+
+    private class Segment(val data: ByteArray, val deliverAt: Long)
+
+    /**
+     * Forwards what [from] receives to [to] with the delays of the profile, on a reading and a writing thread. [onDone]
+     * is called once nothing more will be written to [to].
+     */
+    private fun forward(from: Socket, to: Socket, random: Random, onDone: () -> Unit) {
+        val segments = ArrayBlockingQueue<Segment>(SEGMENTS_IN_FLIGHT)
+        val eof = Segment(ByteArray(0), 0)
+        thread(isDaemon = true, name = "WAN proxy ${from.port} reader") {
+            var linkFreeAt = System.nanoTime()
+            var lastDelivery = 0L
+            try {
+                val input = from.getInputStream()
+                val buffer = ByteArray(SEGMENT_SIZE)
+                while (true) {
+                    val read = input.read(buffer)
+                    if (read < 0) {
+                        break
+                    }
+                    val now = System.nanoTime()
+                    linkFreeAt = maxOf(linkFreeAt, now) + transmissionNanos(read)
+                    lastDelivery = maxOf(lastDelivery, linkFreeAt + delayNanos(random))
+                    segments.put(Segment(buffer.copyOf(read), lastDelivery))
+                }
+            } catch (e: IOException) {
+                // the connection was closed
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+            } finally {
+                segments.offer(eof, 1, TimeUnit.SECONDS)
+            }
+        }
+        thread(isDaemon = true, name = "WAN proxy ${to.port} writer") {
+            try {
+                val output = to.getOutputStream()
+                while (true) {
+                    val segment = segments.take()
+                    if (segment === eof) {
+                        to.shutdownOutput()
+                        break
+                    }
+                    val wait = segment.deliverAt - System.nanoTime()
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait)
+                    }
+                    output.write(segment.data)
+                    output.flush()
+                }
+            } catch (e: IOException) {
+                from.closeQuietly()
+                to.closeQuietly()
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+            } finally {
+                onDone()
+            }
+        }
+    }
+
+    private fun transmissionNanos(bytes: Int) =
+        if (profile.bandwidthKiB <= 0) 0 else bytes * TimeUnit.SECONDS.toNanos(1) / (profile.bandwidthKiB * 1024L)
+
+    private fun delayNanos(random: Random): Long {
+        var millis = profile.rttMillis / 2.0
+        if (profile.jitterMillis > 0) {
+            millis += random.nextDouble() * profile.jitterMillis
+        }
+        if (profile.stallProbability > 0 && random.nextDouble() < profile.stallProbability) {
+            millis += profile.stallMillis
+        }
+        return (millis * TimeUnit.MILLISECONDS.toNanos(1)).toLong()
+    }
+
+    private fun Socket.closeQuietly() {
+        try {
+            close()
+        } catch (e: IOException) {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.wavescale.sourcesync.benchmarks
+
+import com.intellij.openapi.progress.EmptyProgressIndicator
+import java.io.FileInputStream
+import java.io.OutputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+import org.openjdk.jmh.annotations.AuxCounters
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.TearDown
+import org.openjdk.jmh.annotations.Warmup
+import org.wavescale.sourcesync.synchronizer.BatchProgress
+import org.wavescale.sourcesync.synchronizer.FileContentCopier
+
+/**
+ * The SCP content copy loop, with the progress reported for every chunk as the SCP synchronizer does, into a stream
+ * that discards everything, so the scores show the cost of the loop itself without the network. Every operation
+ * copies [fileCount] files of [fileSize] bytes, and the `bytes` counter is the throughput in bytes per second.
+ *
+ * [copyWithFileInputStream] is the loop the SCP synchronizer used before [FileContentCopier]: a [FileInputStream] read
+ * into a 1 KiB array, with the fraction of the indicator updated after every read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class ContentCopyBenchmark {
+
+    @Param("4096", "1048576", "67108864")
+    var fileSize = 0
+
+    @Param("1", "16")
+    var fileCount = 0
+
+    private lateinit var directory: Path
+    private lateinit var files: List<Path>
+    private val indicator = EmptyProgressIndicator()
+    private val sink = OutputStream.nullOutputStream()
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    open class CopiedBytes {
+        @JvmField
+        var bytes = 0L
+
+        @Setup(Level.Iteration)
+        fun reset() {
+            bytes = 0
+        }
+    }
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        directory = Files.createTempDirectory("sourcesync-copy-benchmark")
+        val content = Random(42).nextBytes(fileSize)
+        files = List(fileCount) { Files.write(directory.resolve("file$it.bin"), content) }
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        files.forEach(Files::delete)
+        Files.delete(directory)
+    }
+
+    @Benchmark
+    fun copyWithProgress(counter: CopiedBytes): Long {
+        var copied = 0L
+        val progress = BatchProgress(indicator, fileCount, fileSize.toLong() * fileCount)
+        for (file in files) {
+            val fileProgress = progress.file(fileSize.toLong())
+            copied += FileContentCopier.copy(file, fileSize.toLong(), sink) { fileProgress.add(it.toLong()) }
+            fileProgress.done()
+        }
+        progress.finish()
+        counter.bytes += copied
+        return copied
+    }
+
+    @Benchmark
+    fun copyWithFileInputStream(counter: CopiedBytes): Long {
+        var copied = 0L
+        val buf = ByteArray(1024)
+        for (file in files) {
+            FileInputStream(file.toFile()).use { fis ->
+                var uploaded = 0.0
+                while (true) {
+                    val len = fis.read(buf, 0, buf.size)
+                    if (len <= 0) break
+                    sink.write(buf, 0, len)
+                    uploaded += len.toDouble()
+                    indicator.fraction = uploaded / fileSize
+                }
+                copied += uploaded.toLong()
+            }
+        }
+        counter.bytes += copied
+        return copied
+    }
+}
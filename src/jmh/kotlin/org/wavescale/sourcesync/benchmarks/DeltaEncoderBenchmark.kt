@@ -0,0 +1,103 @@
+package org.wavescale.sourcesync.benchmarks
+
+import java.io.DataOutputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.util.concurrent.TimeUnit
+import java.util.zip.Adler32
+import kotlin.random.Random
+import org.openjdk.jmh.annotations.AuxCounters
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Level
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import org.wavescale.sourcesync.synchronizer.BlockSignatures
+import org.wavescale.sourcesync.synchronizer.DeltaEncoder
+import org.wavescale.sourcesync.synchronizer.DeltaUploader
+
+/**
+ * The delta encoding of a local file of [fileSize] bytes against signatures of its remote copy, which differs from it
+ * by [edits] single byte insertions at random offsets. Every insertion shifts the rest of the file, so the rolling
+ * checksum has to find the blocks again past it.
+ *
+ * The scores are the time it takes to encode the whole file. The `deltaBytes` and `literalBytes` counters are the size
+ * of the encoded delta and how much of it is literal data, which is what the delta transfer saves on the wire against
+ * a full upload of [fileSize] bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class DeltaEncoderBenchmark {
+
+    @Param("8388608", "67108864")
+    var fileSize = 0
+
+    @Param("0", "1", "64", "4096")
+    var edits = 0
+
+    private lateinit var content: ByteBuffer
+    private lateinit var signatures: BlockSignatures
+
+    /**
+     * The counters are assigned rather than added to, so every iteration reports the size of a single delta.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    open class EncodedSize {
+        @JvmField
+        var deltaBytes = 0L
+
+        @JvmField
+        var literalBytes = 0L
+    }
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        val random = Random(42)
+        val remote = random.nextBytes(fileSize)
+        val local = ByteArray(fileSize + edits)
+        var copied = 0
+        IntArray(edits) { random.nextInt(fileSize + 1) }.sorted().forEachIndexed { inserted, offset ->
+            remote.copyInto(local, copied + inserted, copied, offset)
+            local[offset + inserted] = random.nextInt().toByte()
+            copied = offset
+        }
+        remote.copyInto(local, copied + edits, copied, fileSize)
+        content = ByteBuffer.wrap(local)
+
+        // the same signatures the remote helper computes, adler32 and md5 of every full block
+        val blockSize = DeltaUploader.blockSize(fileSize.toLong())
+        val blocks = fileSize / blockSize
+        val adler = Adler32()
+        val md5 = MessageDigest.getInstance("MD5")
+        val weak = IntArray(blocks) { block ->
+            adler.reset()
+            adler.update(remote, block * blockSize, blockSize)
+            adler.value.toInt()
+        }
+        val strong = Array(blocks) { block ->
+            md5.update(remote, block * blockSize, blockSize)
+            md5.digest()
+        }
+        signatures = BlockSignatures(blockSize, weak, strong)
+    }
+
+    @Benchmark
+    fun encode(size: EncodedSize) {
+        val out = DataOutputStream(OutputStream.nullOutputStream())
+        size.literalBytes = DeltaEncoder.encode(content, signatures, out)
+        size.deltaBytes = out.size().toLong()
+    }
+}
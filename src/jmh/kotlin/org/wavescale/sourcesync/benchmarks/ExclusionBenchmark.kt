@@ -0,0 +1,80 @@
+package org.wavescale.sourcesync.benchmarks
+
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OperationsPerInvocation
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import org.openjdk.jmh.infra.Blackhole
+import org.wavescale.sourcesync.api.Utils
+import org.wavescale.sourcesync.synchronizer.ExclusionMatcher
+
+private const val PATHS = 100_000
+
+/**
+ * Compares the deprecated [Utils.canBeUploaded] with [ExclusionMatcher] on the paths of a typical project tree. The
+ * scores are in paths per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class ExclusionBenchmark {
+
+    /**
+     * The extensions the original implementation understands, alone and then along with path patterns that only the
+     * matcher understands.
+     */
+    @Param(".crt;.iml;.class;.log", ".crt;.iml;.class;.log build/ *.min.js /dist src/generated/** **/testdata/*.bin")
+    lateinit var patterns: String
+
+    private lateinit var relativePaths: Array<String>
+    private lateinit var names: Array<String>
+    private lateinit var matcher: ExclusionMatcher
+
+    @Setup
+    fun setUp() {
+        val extensions = listOf("kt", "java", "xml", "class", "min.js", "js", "iml", "md", "bin", "log")
+        val directories = listOf("src/main/kotlin/org/example", "src/test/kotlin/org/example", "build/classes", "web/dist", "src/generated/api", "core/testdata")
+        relativePaths = Array(PATHS) { i ->
+            "${directories[i % directories.size]}/module${i % 37}/File$i.${extensions[i % extensions.size]}"
+        }
+        names = Array(PATHS) { relativePaths[it].substringAfterLast('/') }
+        matcher = ExclusionMatcher.compile(patterns)
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PATHS)
+    @Suppress("DEPRECATION")
+    fun canBeUploaded(blackhole: Blackhole) {
+        for (name in names) {
+            blackhole.consume(Utils.canBeUploaded(name, patterns))
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PATHS)
+    fun exclusionMatcher(blackhole: Blackhole) {
+        for (path in relativePaths) {
+            blackhole.consume(matcher.isExcluded(path, false))
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PATHS)
+    fun exclusionMatcherWithParents(blackhole: Blackhole) {
+        for (path in relativePaths) {
+            blackhole.consume(matcher.isExcludedWithParents(path, false))
+        }
+    }
+}
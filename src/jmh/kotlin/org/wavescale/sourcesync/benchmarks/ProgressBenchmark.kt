@@ -0,0 +1,56 @@
+package org.wavescale.sourcesync.benchmarks
+
+import com.intellij.openapi.progress.EmptyProgressIndicator
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import org.openjdk.jmh.infra.Blackhole
+import org.wavescale.sourcesync.synchronizer.BatchProgress
+
+/**
+ * The progress callbacks the SFTP channel makes while it uploads a file: one call per chunk it sends, which is what
+ * the `SftpMonitor` of the SFTP synchronizer hands to a [BatchProgress]. The scores are the time spent in the
+ * callbacks for a whole file of [fileSize] bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class ProgressBenchmark {
+
+    @Param("65536", "16777216", "1073741824")
+    var fileSize = 0L
+
+    /**
+     * The SFTP channel reads files in chunks of at most 32 KiB, minus the packet header.
+     */
+    @Param("32736")
+    var chunkSize = 0
+
+    private val indicator = EmptyProgressIndicator()
+
+    @Benchmark
+    fun sftpProgressCallbacks(blackhole: Blackhole) {
+        val progress = BatchProgress(indicator, 1, fileSize)
+        val fileProgress = progress.file(fileSize)
+        var sent = 0L
+        while (sent < fileSize) {
+            val chunk = minOf(chunkSize.toLong(), fileSize - sent)
+            fileProgress.add(chunk)
+            sent += chunk
+        }
+        fileProgress.done()
+        progress.finish()
+        blackhole.consume(progress)
+    }
+}
@@ -0,0 +1,71 @@
+package org.wavescale.sourcesync.benchmarks
+
+import java.nio.file.Path
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations.Benchmark
+import org.openjdk.jmh.annotations.BenchmarkMode
+import org.openjdk.jmh.annotations.Fork
+import org.openjdk.jmh.annotations.Measurement
+import org.openjdk.jmh.annotations.Mode
+import org.openjdk.jmh.annotations.OutputTimeUnit
+import org.openjdk.jmh.annotations.Param
+import org.openjdk.jmh.annotations.Scope
+import org.openjdk.jmh.annotations.Setup
+import org.openjdk.jmh.annotations.State
+import org.openjdk.jmh.annotations.Warmup
+import org.openjdk.jmh.infra.Blackhole
+import org.wavescale.sourcesync.api.Utils
+import org.wavescale.sourcesync.synchronizer.ExclusionMatcher
+import org.wavescale.sourcesync.synchronizer.pathStringLike
+import org.wavescale.sourcesync.synchronizer.relativeExclusionPath
+
+/**
+ * The work done for every file of a selection before it is queued for upload: filtering out the excluded files and
+ * resolving the upload location of the others. The scores are the time it takes for the whole selection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+open class SelectionBenchmark {
+
+    @Param("100", "10000", "100000")
+    var fileCount = 0
+
+    private val projectBase = Path.of("/home/user/workspace/project")
+    private lateinit var files: List<Path>
+    private lateinit var matcher: ExclusionMatcher
+
+    @Setup
+    fun setUp() {
+        val extensions = listOf("kt", "java", "xml", "class", "min.js", "js", "iml", "md", "bin", "log")
+        val directories = listOf("src/main/kotlin/org/example", "src/test/kotlin/org/example", "build/classes", "web/dist", "core/testdata")
+        files = List(fileCount) { i ->
+            projectBase.resolve("${directories[i % directories.size]}/module${i % 37}/File$i.${extensions[i % extensions.size]}")
+        }
+        matcher = ExclusionMatcher.compile(".iml .class .log build/ *.min.js /web/dist")
+    }
+
+    /**
+     * The partitioning done by the upload actions before anything is queued.
+     */
+    @Benchmark
+    fun partitionExcluded(): Pair<List<Path>, List<Path>> =
+        files.partition { !matcher.isExcludedWithParents(relativeExclusionPath(it, projectBase), false) }
+
+    @Benchmark
+    fun relativeToProjectPath(blackhole: Blackhole) {
+        for (file in files) {
+            blackhole.consume(Utils.relativeToProjectPath(file, projectBase))
+        }
+    }
+
+    @Benchmark
+    fun pathStringLike(blackhole: Blackhole) {
+        for (file in files) {
+            blackhole.consume(file.pathStringLike("/remote/workspace"))
+        }
+    }
+}
@@ -28,7 +28,10 @@ public class Utils
      *                           by space, comma or ";" character that are not to be uploaded. The
      *                           extension MUST contain the dot character - ex: ".crt .iml .etc"
      * @return <code>true</code> if file extension is not on the extensionsToFilter, <code>False</code> otherwise.
+     * @deprecated matches extensions as substrings of the whole filter, so ".c" also excludes ".crt" files. Use
+     * {@link org.wavescale.sourcesync.synchronizer.ExclusionMatcher} instead.
      */
+    @Deprecated
     public static boolean canBeUploaded(String fileName, String extensionsToFilter)
     {
         String extension = ".";
@@ -58,7 +61,23 @@ public class Utils
      */
     public static Path relativeToProjectPath(VirtualFile virtualFile, IProjectStore projectStore)
     {
-        return projectStore.getProjectBasePath().getParent().relativize(virtualFile.toNioPath().getParent());
+        return relativeToProjectPath(virtualFile.toNioPath(), projectStore);
+    }
+
+    /**
+     * Same as {@link #relativeToProjectPath(VirtualFile, IProjectStore)}, for a file found on disk.
+     */
+    public static Path relativeToProjectPath(Path file, IProjectStore projectStore)
+    {
+        return relativeToProjectPath(file, projectStore.getProjectBasePath());
+    }
+
+    /**
+     * Same as {@link #relativeToProjectPath(Path, IProjectStore)}, for a project whose base path is already known.
+     */
+    public static Path relativeToProjectPath(Path file, Path projectBasePath)
+    {
+        return projectBasePath.getParent().relativize(file.getParent());
     }
 
     /**
@@ -3,28 +3,15 @@ package org.wavescale.sourcesync.action
 import com.intellij.openapi.actionSystem.ActionUpdateThread
 import com.intellij.openapi.actionSystem.AnAction
 import com.intellij.openapi.actionSystem.AnActionEvent
-import com.intellij.openapi.diagnostic.logger
-import com.intellij.openapi.progress.ProgressIndicator
-import com.intellij.openapi.progress.ProgressManager
-import com.intellij.openapi.progress.Task
 import com.intellij.openapi.project.ProjectManager
 import com.intellij.openapi.vcs.changes.ChangeListManager
 import com.intellij.openapi.vcs.changes.LocalChangeList
 import com.intellij.openapi.vfs.VirtualFile
-import com.intellij.project.stateStore
 import com.intellij.ui.NewUI
-import java.io.File
 import org.wavescale.sourcesync.SourceSyncIcons
 import org.wavescale.sourcesync.SourcesyncBundle
-import org.wavescale.sourcesync.api.Utils
-import org.wavescale.sourcesync.configurations.ScpSyncConfiguration
-import org.wavescale.sourcesync.configurations.SshSyncConfiguration
-import org.wavescale.sourcesync.configurations.SyncConfigurationType
 import org.wavescale.sourcesync.notifications.Notifier
 import org.wavescale.sourcesync.services.SyncRemoteConfigurationsService
-import org.wavescale.sourcesync.synchronizer.SCPFileSynchronizer
-import org.wavescale.sourcesync.synchronizer.SFTPFileSynchronizer
-import org.wavescale.sourcesync.synchronizer.Synchronizer
 
 class ActionChangedFilesToRemote : AnAction() {
     private val syncConfigurationsService = ProjectManager.getInstance().openProjects[0].getService(SyncRemoteConfigurationsService::class.java)
@@ -62,43 +49,7 @@ class ActionChangedFilesToRemote : AnAction() {
             return
         }
 
-        val fileSynchronizer: Synchronizer = when (mainConfiguration.protocol) {
-            SyncConfigurationType.SCP -> {
-                SCPFileSynchronizer(mainConfiguration as ScpSyncConfiguration, project)
-            }
-
-            SyncConfigurationType.SFTP -> {
-                SFTPFileSynchronizer(mainConfiguration as SshSyncConfiguration, project)
-            }
-        }
-
-        var directoriesFound = false
-        val (files, rest) = changedFiles.filterNotNull().partition { File(it.path).isFile }
-        rest.forEach {
-            directoriesFound = true
-            ActionSelectedFilesToRemote.logger.info("Skipping upload of ${it.name} because it's a directory")
-        }
-
-        if (directoriesFound) {
-            Notifier.notifyUpgradeToProDueToFolderUpload(project)
-        }
-
-        val (acceptedFiles, excludedFiles) = files.partition { Utils.canBeUploaded(it.name, mainConfiguration.excludedFiles) }
-        excludedFiles.forEach {
-            ActionSelectedFilesToRemote.logger.info("Skipping upload of ${it.name} because it matches the exclusion file pattern")
-        }
-        ProgressManager.getInstance().run(object : Task.Backgroundable(e.project, "Uploading", false) {
-            override fun run(indicator: ProgressIndicator) {
-                try {
-                    if (fileSynchronizer.connect()) {
-                        fileSynchronizer.syncFiles(acceptedFiles.map { Pair(it.path, Utils.relativeToProjectPath(it, project.stateStore)) }.toSet(), indicator)
-                    }
-                } finally {
-                    fileSynchronizer.disconnect()
-                }
-            }
-        })
-
+        uploadInBackground(project, mainConfiguration, changedFiles.filterNotNull())
     }
 
     private fun hasModifiedFiles(changeLists: List<LocalChangeList>): Boolean {
@@ -132,8 +83,4 @@ class ActionChangedFilesToRemote : AnAction() {
             }
         }
     }
-
-    companion object {
-        private val logger = logger<ActionChangedFilesToRemote>()
-    }
 }
\ No newline at end of file
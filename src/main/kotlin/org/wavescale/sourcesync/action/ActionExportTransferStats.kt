@@ -0,0 +1,36 @@
+package org.wavescale.sourcesync.action
+
+import com.intellij.openapi.actionSystem.AnAction
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.components.service
+import com.intellij.openapi.fileChooser.FileChooserFactory
+import com.intellij.openapi.fileChooser.FileSaverDescriptor
+import java.io.IOException
+import java.nio.file.Files
+import org.wavescale.sourcesync.SourcesyncBundle
+import org.wavescale.sourcesync.notifications.Notifier
+import org.wavescale.sourcesync.services.StatsService
+
+/**
+ * Saves the transfer statistics recorded by the [StatsService] since the IDE started to a JSON file.
+ */
+class ActionExportTransferStats : AnAction() {
+    override fun actionPerformed(e: AnActionEvent) {
+        val project = e.project ?: return
+        val descriptor = FileSaverDescriptor(
+            SourcesyncBundle.message("export.transfer.stats.title"),
+            SourcesyncBundle.message("export.transfer.stats.description"),
+            "json"
+        )
+        val target = FileChooserFactory.getInstance().createSaveFileDialog(descriptor, project).save("sourcesync-stats.json") ?: return
+        try {
+            Files.writeString(target.file.toPath(), service<StatsService>().exportJson())
+        } catch (ex: IOException) {
+            Notifier.notifyError(
+                project,
+                SourcesyncBundle.message("export.transfer.stats.title"),
+                "Could not write ${target.file}. Reason: ${ex.message}"
+            )
+        }
+    }
+}
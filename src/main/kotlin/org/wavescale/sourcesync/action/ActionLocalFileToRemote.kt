@@ -4,24 +4,12 @@ import com.intellij.openapi.actionSystem.ActionUpdateThread
 import com.intellij.openapi.actionSystem.AnAction
 import com.intellij.openapi.actionSystem.AnActionEvent
 import com.intellij.openapi.actionSystem.PlatformDataKeys
-import com.intellij.openapi.diagnostic.logger
-import com.intellij.openapi.progress.ProgressIndicator
-import com.intellij.openapi.progress.ProgressManager
-import com.intellij.openapi.progress.Task
 import com.intellij.openapi.project.ProjectManager
-import com.intellij.project.stateStore
 import com.intellij.ui.NewUI
 import org.wavescale.sourcesync.SourceSyncIcons
 import org.wavescale.sourcesync.SourcesyncBundle
-import org.wavescale.sourcesync.api.Utils
-import org.wavescale.sourcesync.configurations.ScpSyncConfiguration
-import org.wavescale.sourcesync.configurations.SshSyncConfiguration
-import org.wavescale.sourcesync.configurations.SyncConfigurationType
 import org.wavescale.sourcesync.notifications.Notifier
 import org.wavescale.sourcesync.services.SyncRemoteConfigurationsService
-import org.wavescale.sourcesync.synchronizer.SCPFileSynchronizer
-import org.wavescale.sourcesync.synchronizer.SFTPFileSynchronizer
-import org.wavescale.sourcesync.synchronizer.Synchronizer
 
 class ActionLocalFileToRemote : AnAction() {
     private val syncConfigurationsService = ProjectManager.getInstance().openProjects[0].getService(SyncRemoteConfigurationsService::class.java)
@@ -41,11 +29,6 @@ class ActionLocalFileToRemote : AnAction() {
             return
         }
 
-        if (virtualFile.isDirectory) {
-            Notifier.notifyUpgradeToProDueToFolderUpload(project)
-            return
-        }
-
         val mainConfiguration = syncConfigurationsService.mainConnection()
         if (mainConfiguration == null) {
             Notifier.notifyError(
@@ -56,34 +39,7 @@ class ActionLocalFileToRemote : AnAction() {
             return
         }
 
-        val fileSynchronizer: Synchronizer = when (mainConfiguration.protocol) {
-            SyncConfigurationType.SCP -> {
-                SCPFileSynchronizer(mainConfiguration as ScpSyncConfiguration, project)
-            }
-
-            SyncConfigurationType.SFTP -> {
-                SFTPFileSynchronizer(mainConfiguration as SshSyncConfiguration, project)
-            }
-        }
-
-        if (Utils.canBeUploaded(virtualFile.name, mainConfiguration.excludedFiles)) {
-            val uploadLocation = Utils.relativeToProjectPath(virtualFile, project.stateStore)
-            ProgressManager.getInstance().run(object : Task.Backgroundable(e.project, "Uploading", false) {
-                override fun run(indicator: ProgressIndicator) {
-                    try {
-                        if (fileSynchronizer.connect()) {
-                            fileSynchronizer.syncFile(virtualFile.path, uploadLocation, indicator)
-                        }
-                    } finally {
-                        fileSynchronizer.disconnect()
-                    }
-
-
-                }
-            })
-        } else {
-            logger.info("Skipping upload of ${virtualFile.name} because it matches the exclusion file pattern")
-        }
+        uploadInBackground(project, mainConfiguration, listOf(virtualFile))
     }
 
     override fun update(e: AnActionEvent) {
@@ -105,9 +61,4 @@ class ActionLocalFileToRemote : AnAction() {
             }
         }
     }
-
-    companion object {
-        val logger = logger<ActionSelectedFilesToRemote>()
-    }
-
 }
\ No newline at end of file
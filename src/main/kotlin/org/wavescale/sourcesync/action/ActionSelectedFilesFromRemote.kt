@@ -0,0 +1,65 @@
+package org.wavescale.sourcesync.action
+
+import com.intellij.openapi.actionSystem.ActionUpdateThread
+import com.intellij.openapi.actionSystem.AnAction
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.actionSystem.PlatformDataKeys
+import com.intellij.openapi.project.ProjectManager
+import com.intellij.ui.NewUI
+import org.wavescale.sourcesync.SourceSyncIcons
+import org.wavescale.sourcesync.SourcesyncBundle
+import org.wavescale.sourcesync.notifications.Notifier
+import org.wavescale.sourcesync.services.SyncRemoteConfigurationsService
+
+class ActionSelectedFilesFromRemote : AnAction() {
+    private val syncConfigurationsService = ProjectManager.getInstance().openProjects[0].getService(SyncRemoteConfigurationsService::class.java)
+    override fun getActionUpdateThread() = ActionUpdateThread.BGT
+
+    override fun actionPerformed(e: AnActionEvent) {
+        // first check if there's a connection type associated to this module.
+        // If not alert the user and get out
+        val project = e.project ?: return
+
+        // get a list of selected virtual files
+        val virtualFiles = PlatformDataKeys.VIRTUAL_FILE_ARRAY.getData(e.dataContext)!!
+        if (virtualFiles.isEmpty()) {
+            Notifier.notifyInfo(
+                e.project!!,
+                SourcesyncBundle.message("no.files.selected.to.download")
+            )
+            return
+        }
+
+        val mainConfiguration = syncConfigurationsService.mainConnection()
+        if (mainConfiguration == null) {
+            Notifier.notifyError(
+                e.project!!,
+                SourcesyncBundle.message("no.remote.sync.connection.configured.title"),
+                SourcesyncBundle.message("no.remote.sync.connection.configured.message")
+            )
+            return
+        }
+
+        downloadInBackground(project, mainConfiguration, virtualFiles.filterNotNull())
+    }
+
+    override fun update(e: AnActionEvent) {
+        super.update(e)
+        if (NewUI.isEnabled()) {
+            e.presentation.icon = SourceSyncIcons.ExpUI.SOURCESYNC
+        }
+
+        val mainConnectionName = syncConfigurationsService.mainConnectionName()
+        if (mainConnectionName != null) {
+            e.presentation.apply {
+                text = "Download selected files from $mainConnectionName"
+                isEnabled = true
+            }
+        } else {
+            e.presentation.apply {
+                text = "Download selected files from Remote target"
+                isEnabled = false
+            }
+        }
+    }
+}
\ No newline at end of file
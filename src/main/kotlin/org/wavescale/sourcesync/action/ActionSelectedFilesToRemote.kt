@@ -4,25 +4,12 @@ import com.intellij.openapi.actionSystem.ActionUpdateThread
 import com.intellij.openapi.actionSystem.AnAction
 import com.intellij.openapi.actionSystem.AnActionEvent
 import com.intellij.openapi.actionSystem.PlatformDataKeys
-import com.intellij.openapi.diagnostic.logger
-import com.intellij.openapi.progress.ProgressIndicator
-import com.intellij.openapi.progress.ProgressManager
-import com.intellij.openapi.progress.Task
 import com.intellij.openapi.project.ProjectManager
-import com.intellij.project.stateStore
 import com.intellij.ui.NewUI
-import java.io.File
 import org.wavescale.sourcesync.SourceSyncIcons
 import org.wavescale.sourcesync.SourcesyncBundle
-import org.wavescale.sourcesync.api.Utils
-import org.wavescale.sourcesync.configurations.ScpSyncConfiguration
-import org.wavescale.sourcesync.configurations.SshSyncConfiguration
-import org.wavescale.sourcesync.configurations.SyncConfigurationType
 import org.wavescale.sourcesync.notifications.Notifier
 import org.wavescale.sourcesync.services.SyncRemoteConfigurationsService
-import org.wavescale.sourcesync.synchronizer.SCPFileSynchronizer
-import org.wavescale.sourcesync.synchronizer.SFTPFileSynchronizer
-import org.wavescale.sourcesync.synchronizer.Synchronizer
 
 class ActionSelectedFilesToRemote : AnAction() {
     private val syncConfigurationsService = ProjectManager.getInstance().openProjects[0].getService(SyncRemoteConfigurationsService::class.java)
@@ -53,41 +40,7 @@ class ActionSelectedFilesToRemote : AnAction() {
             return
         }
 
-        val fileSynchronizer: Synchronizer = when (mainConfiguration.protocol) {
-            SyncConfigurationType.SCP -> {
-                SCPFileSynchronizer(mainConfiguration as ScpSyncConfiguration, project)
-            }
-
-            SyncConfigurationType.SFTP -> {
-                SFTPFileSynchronizer(mainConfiguration as SshSyncConfiguration, project)
-            }
-        }
-        var directoriesFound = false
-        val (files, rest) = virtualFiles.filterNotNull().partition { File(it.path).isFile }
-        rest.forEach {
-            directoriesFound = true
-            logger.info("Skipping upload of ${it.name} because it's a directory")
-        }
-
-        if (directoriesFound) {
-            Notifier.notifyUpgradeToProDueToFolderUpload(project)
-        }
-
-        val (acceptedFiles, excludedFiles) = files.partition { Utils.canBeUploaded(it.name, mainConfiguration.excludedFiles) }
-        excludedFiles.forEach {
-            logger.info("Skipping upload of ${it.name} because it matches the exclusion file pattern")
-        }
-        ProgressManager.getInstance().run(object : Task.Backgroundable(e.project, "Uploading", false) {
-            override fun run(indicator: ProgressIndicator) {
-                try {
-                    if (fileSynchronizer.connect()) {
-                        fileSynchronizer.syncFiles(acceptedFiles.map { Pair(it.path, Utils.relativeToProjectPath(it, project.stateStore)) }.toSet(), indicator)
-                    }
-                } finally {
-                    fileSynchronizer.disconnect()
-                }
-            }
-        })
+        uploadInBackground(project, mainConfiguration, virtualFiles.filterNotNull())
     }
 
     override fun update(e: AnActionEvent) {
@@ -109,8 +62,4 @@ class ActionSelectedFilesToRemote : AnAction() {
             }
         }
     }
-
-    companion object {
-        val logger = logger<ActionSelectedFilesToRemote>()
-    }
 }
\ No newline at end of file
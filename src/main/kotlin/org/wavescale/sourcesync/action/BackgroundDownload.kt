@@ -0,0 +1,64 @@
+package org.wavescale.sourcesync.action
+
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.progress.Task
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.vfs.LocalFileSystem
+import com.intellij.openapi.vfs.VfsUtil
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.project.stateStore
+import java.nio.file.Path
+import org.wavescale.sourcesync.configurations.BaseSyncConfiguration
+import org.wavescale.sourcesync.synchronizer.synchronizerFor
+
+/**
+ * Downloads the remote copies of the [selected] files and directories from the remote of [configuration] in a
+ * background task, over the local ones.
+ *
+ * The VFS is refreshed once, after the last file is written, so the IDE picks up all the downloaded files in a single
+ * refresh instead of reindexing them one by one. Since the refresh does not come from a save, the downloaded files are
+ * never uploaded back by auto sync on save. Canceling the task stops the download, the files already downloaded are
+ * kept and refreshed.
+ */
+internal fun downloadInBackground(project: Project, configuration: BaseSyncConfiguration, selected: Collection<VirtualFile>) {
+    val projectBase = project.stateStore.projectBasePath
+    // the same layout as the uploads, the project directory itself is created under the workspace base path
+    val src = selected.distinct()
+        .filter { it.isInLocalFileSystem }
+        .map { it.toNioPath() }
+        .map { Pair(it, projectBase.parent.relativize(it)) }
+    if (src.isEmpty()) {
+        return
+    }
+
+    ProgressManager.getInstance().run(object : Task.Backgroundable(project, "Downloading from ${configuration.name}", true) {
+        override fun run(indicator: ProgressIndicator) {
+            val fileSynchronizer = synchronizerFor(configuration, project)
+            val downloaded = try {
+                if (!fileSynchronizer.connect()) {
+                    return
+                }
+                fileSynchronizer.downloadFiles(src, indicator)
+            } finally {
+                fileSynchronizer.disconnect()
+            }
+            refreshDownloadedFiles(downloaded)
+        }
+    })
+}
+
+/**
+ * Refreshes the downloaded [files] with a single asynchronous VFS refresh. Files the VFS does not know yet are picked
+ * up by refreshing the closest of their parent directories it knows.
+ */
+private fun refreshDownloadedFiles(files: Collection<Path>) {
+    if (files.isEmpty()) {
+        return
+    }
+    val localFileSystem = LocalFileSystem.getInstance()
+    val toRefresh = files.mapNotNullTo(LinkedHashSet()) { file ->
+        generateSequence(file) { it.parent }.firstNotNullOfOrNull { localFileSystem.findFileByNioFile(it) }
+    }
+    VfsUtil.markDirtyAndRefresh(true, true, true, *toRefresh.toTypedArray())
+}
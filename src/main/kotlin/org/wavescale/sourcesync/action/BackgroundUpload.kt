@@ -0,0 +1,94 @@
+package org.wavescale.sourcesync.action
+
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.fileTypes.FileTypeManager
+import com.intellij.openapi.module.ModuleManager
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.progress.Task
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.roots.ModuleRootManager
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.project.stateStore
+import java.nio.file.Path
+import org.wavescale.sourcesync.api.Utils
+import org.wavescale.sourcesync.configurations.BaseSyncConfiguration
+import org.wavescale.sourcesync.services.SyncPriority
+import org.wavescale.sourcesync.services.SyncQueueService
+import org.wavescale.sourcesync.synchronizer.ExclusionMatcher
+import org.wavescale.sourcesync.synchronizer.ParallelDirectoryWalker
+import org.wavescale.sourcesync.synchronizer.exclusionMatcher
+import org.wavescale.sourcesync.synchronizer.relativeExclusionPath
+
+private val logger = logger("#org.wavescale.sourcesync.action.BackgroundUpload")
+
+/**
+ * Queues the [selected] files and directories for upload to the remote of [configuration] with the [SyncQueueService].
+ * A single selected file is uploaded ahead of the bigger jobs.
+ *
+ * Directories are walked in parallel in a background task and their files are queued in chunks while the walk goes
+ * on. Excluded files, the files and directories ignored by the IDE and the excluded roots of the project's modules are
+ * never uploaded, and ignored or excluded directories are not even walked.
+ */
+internal fun uploadInBackground(project: Project, configuration: BaseSyncConfiguration, selected: Collection<VirtualFile>) {
+    val (directories, files) = selected.distinct().partition { it.isDirectory }
+    if (files.isEmpty() && directories.isEmpty()) {
+        return
+    }
+
+    ProgressManager.getInstance().run(object : Task.Backgroundable(project, "Collecting files to upload", true) {
+        override fun run(indicator: ProgressIndicator) {
+            val projectStore = project.stateStore
+            val projectBase = projectStore.projectBasePath
+            val matcher = configuration.exclusionMatcher(projectBase)
+            val (acceptedFiles, excludedFiles) = files.partition { !matcher.isExcludedWithParents(relativeExclusionPath(it.toNioPath(), projectBase), false) }
+            excludedFiles.forEach {
+                logger.info("Skipping upload of ${it.name} because it matches the exclusion file pattern")
+            }
+            val acceptedDirectories = directories.filter { !matcher.isExcludedWithParents(relativeExclusionPath(it.toNioPath(), projectBase), true) }
+            if (acceptedFiles.isEmpty() && acceptedDirectories.isEmpty()) {
+                return
+            }
+
+            val syncQueue = project.service<SyncQueueService>()
+            val priority = if (acceptedDirectories.isEmpty() && acceptedFiles.size == 1) SyncPriority.INTERACTIVE else SyncPriority.BATCH
+            syncQueue.enqueue(configuration, acceptedFiles.map { Pair(it.path, Utils.relativeToProjectPath(it, projectStore)) }, priority)
+            if (acceptedDirectories.isEmpty()) {
+                return
+            }
+
+            val exclusions = WalkExclusions(project, projectBase, matcher)
+            ParallelDirectoryWalker(exclusions::accept).walk(acceptedDirectories.map { it.toNioPath() }).use { walkedFiles ->
+                walkedFiles.forEach { chunk ->
+                    indicator.checkCanceled()
+                    syncQueue.enqueue(configuration, chunk.map { Pair(it.toString(), Utils.relativeToProjectPath(it, projectStore)) }, SyncPriority.BATCH)
+                }
+            }
+        }
+    })
+}
+
+/**
+ * Decides what a directory walk skips. Called concurrently by the walker threads.
+ */
+private class WalkExclusions(project: Project, private val projectBase: Path, private val matcher: ExclusionMatcher) {
+    private val fileTypeManager = FileTypeManager.getInstance()
+    private val excludedRoots: Set<Path> = ReadAction.compute<Set<Path>, RuntimeException> {
+        ModuleManager.getInstance(project).modules
+            .flatMap { ModuleRootManager.getInstance(it).excludeRoots.asList() }
+            .filter { it.isInLocalFileSystem }
+            .mapTo(HashSet()) { it.toNioPath() }
+    }
+
+    fun accept(path: Path, isDirectory: Boolean): Boolean {
+        if (fileTypeManager.isFileIgnored(path.fileName.toString())) {
+            return false
+        }
+        if (isDirectory && path in excludedRoots) {
+            return false
+        }
+        return !matcher.isExcluded(relativeExclusionPath(path, projectBase), isDirectory)
+    }
+}
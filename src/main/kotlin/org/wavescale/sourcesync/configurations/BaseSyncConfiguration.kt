@@ -32,12 +32,85 @@ sealed class BaseSyncConfiguration : Cloneable {
     @SerialName("remote_workspace_path")
     var workspaceBasePath = "/home"
 
+    /**
+     * Patterns of the files and directories that are never uploaded, see [org.wavescale.sourcesync.synchronizer.ExclusionMatcher].
+     */
     @SerialName("excluded_files")
     var excludedFiles = ".crt;.iml"
 
+    /**
+     * Also excludes what the `.gitignore` file at the root of the project ignores.
+     */
+    @SerialName("use_gitignore")
+    var useGitignore = false
+
     @SerialName("preserve_timestamps")
     var preserveTimestamps = false
 
+    /**
+     * Whether the SSH transport is compressed: never, always, or only for the files that compress well, on links that
+     * are not fast enough to make compression a waste of CPU.
+     */
+    @SerialName("compression_policy")
+    var compressionPolicy = CompressionPolicy.OFF
+
+    /**
+     * Maximum number of SFTP write requests kept in flight for a single file before waiting for the server's acks.
+     */
+    @SerialName("sftp_write_window")
+    var sftpWriteWindow = DEFAULT_SFTP_WRITE_WINDOW
+
+    /**
+     * Number of channels opened on the same SSH session to upload the files of a batch in parallel.
+     */
+    @SerialName("upload_workers")
+    var uploadWorkers = 1
+
+    /**
+     * Uploads batches of files as a single tar archive streamed into `tar -x` on the remote, when `tar` is available.
+     */
+    @SerialName("tar_stream_uploads")
+    var tarStreamUploads = false
+
+    /**
+     * Uploads only the changed blocks of big files that already exist on the remote, when `python3` is available there.
+     */
+    @SerialName("delta_transfers")
+    var deltaTransfers = false
+
+    /**
+     * Skips the files whose remote copy has the same size and is not older than the local file.
+     */
+    @SerialName("skip_unchanged")
+    var skipUnchanged = false
+
+    /**
+     * How many seconds the remote copy of a file may be older than the local file and still be considered up to date
+     * by [skipUnchanged], to make up for clocks that are not in sync.
+     */
+    @SerialName("clock_skew_tolerance")
+    var clockSkewTolerance = DEFAULT_CLOCK_SKEW_TOLERANCE
+
+    /**
+     * Remembers the content hash of every uploaded file, so files that did not change since their last upload are
+     * skipped without contacting the remote.
+     */
+    @SerialName("content_manifest")
+    var contentManifest = false
+
+    /**
+     * Uploads the files of the project as soon as they are saved, while this is the main connection.
+     */
+    @SerialName("auto_sync_on_save")
+    var autoSyncOnSave = false
+
+    /**
+     * Maximum upload rate to this connection in KiB per second, shared by all the syncs running at the same time. Zero
+     * means no limit.
+     */
+    @SerialName("bandwidth_limit_kib")
+    var bandwidthLimitKiB = 0
+
     private fun credentialsAttributesForPassword(protocol: SyncConfigurationType, name: String, username: String, hostname: String, port: String) = CredentialAttributes(
         generateServiceName("SourceSync - Password", "${protocol}://${name} - ${username}@${hostname}:${port}"),
         username
@@ -64,7 +137,18 @@ sealed class BaseSyncConfiguration : Cloneable {
         if (privateKey != other.privateKey) return false
         if (workspaceBasePath != other.workspaceBasePath) return false
         if (excludedFiles != other.excludedFiles) return false
-        return preserveTimestamps == other.preserveTimestamps
+        if (useGitignore != other.useGitignore) return false
+        if (preserveTimestamps != other.preserveTimestamps) return false
+        if (compressionPolicy != other.compressionPolicy) return false
+        if (sftpWriteWindow != other.sftpWriteWindow) return false
+        if (uploadWorkers != other.uploadWorkers) return false
+        if (tarStreamUploads != other.tarStreamUploads) return false
+        if (deltaTransfers != other.deltaTransfers) return false
+        if (skipUnchanged != other.skipUnchanged) return false
+        if (clockSkewTolerance != other.clockSkewTolerance) return false
+        if (contentManifest != other.contentManifest) return false
+        if (autoSyncOnSave != other.autoSyncOnSave) return false
+        return bandwidthLimitKiB == other.bandwidthLimitKiB
     }
 
     override fun hashCode(): Int {
@@ -77,7 +161,23 @@ sealed class BaseSyncConfiguration : Cloneable {
         result = 31 * result + (privateKey?.hashCode() ?: 0)
         result = 31 * result + workspaceBasePath.hashCode()
         result = 31 * result + excludedFiles.hashCode()
+        result = 31 * result + useGitignore.hashCode()
         result = 31 * result + preserveTimestamps.hashCode()
+        result = 31 * result + compressionPolicy.hashCode()
+        result = 31 * result + sftpWriteWindow
+        result = 31 * result + uploadWorkers
+        result = 31 * result + tarStreamUploads.hashCode()
+        result = 31 * result + deltaTransfers.hashCode()
+        result = 31 * result + skipUnchanged.hashCode()
+        result = 31 * result + clockSkewTolerance
+        result = 31 * result + contentManifest.hashCode()
+        result = 31 * result + autoSyncOnSave.hashCode()
+        result = 31 * result + bandwidthLimitKiB
         return result
     }
+
+    companion object {
+        const val DEFAULT_SFTP_WRITE_WINDOW = 64
+        const val DEFAULT_CLOCK_SKEW_TOLERANCE = 2
+    }
 }
\ No newline at end of file
@@ -0,0 +1,5 @@
+package org.wavescale.sourcesync.configurations
+
+enum class CompressionPolicy(val prettyName: String) {
+    OFF("Off"), ALWAYS("Always"), ADAPTIVE("Adaptive")
+}
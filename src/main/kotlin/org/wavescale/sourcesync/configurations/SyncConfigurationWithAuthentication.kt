@@ -17,7 +17,18 @@ class SshSyncConfiguration : BaseSyncConfiguration() {
         password = this@SshSyncConfiguration.password
         workspaceBasePath = this@SshSyncConfiguration.workspaceBasePath
         excludedFiles = this@SshSyncConfiguration.excludedFiles
+        useGitignore = this@SshSyncConfiguration.useGitignore
         preserveTimestamps = this@SshSyncConfiguration.preserveTimestamps
+        compressionPolicy = this@SshSyncConfiguration.compressionPolicy
+        sftpWriteWindow = this@SshSyncConfiguration.sftpWriteWindow
+        uploadWorkers = this@SshSyncConfiguration.uploadWorkers
+        tarStreamUploads = this@SshSyncConfiguration.tarStreamUploads
+        deltaTransfers = this@SshSyncConfiguration.deltaTransfers
+        skipUnchanged = this@SshSyncConfiguration.skipUnchanged
+        clockSkewTolerance = this@SshSyncConfiguration.clockSkewTolerance
+        contentManifest = this@SshSyncConfiguration.contentManifest
+        autoSyncOnSave = this@SshSyncConfiguration.autoSyncOnSave
+        bandwidthLimitKiB = this@SshSyncConfiguration.bandwidthLimitKiB
         privateKey = this@SshSyncConfiguration.privateKey
         passphrase = this@SshSyncConfiguration.passphrase
     }
@@ -37,7 +48,18 @@ class ScpSyncConfiguration : BaseSyncConfiguration() {
         password = this@ScpSyncConfiguration.password
         workspaceBasePath = this@ScpSyncConfiguration.workspaceBasePath
         excludedFiles = this@ScpSyncConfiguration.excludedFiles
+        useGitignore = this@ScpSyncConfiguration.useGitignore
         preserveTimestamps = this@ScpSyncConfiguration.preserveTimestamps
+        compressionPolicy = this@ScpSyncConfiguration.compressionPolicy
+        sftpWriteWindow = this@ScpSyncConfiguration.sftpWriteWindow
+        uploadWorkers = this@ScpSyncConfiguration.uploadWorkers
+        tarStreamUploads = this@ScpSyncConfiguration.tarStreamUploads
+        deltaTransfers = this@ScpSyncConfiguration.deltaTransfers
+        skipUnchanged = this@ScpSyncConfiguration.skipUnchanged
+        clockSkewTolerance = this@ScpSyncConfiguration.clockSkewTolerance
+        contentManifest = this@ScpSyncConfiguration.contentManifest
+        autoSyncOnSave = this@ScpSyncConfiguration.autoSyncOnSave
+        bandwidthLimitKiB = this@ScpSyncConfiguration.bandwidthLimitKiB
         privateKey = this@ScpSyncConfiguration.privateKey
         passphrase = this@ScpSyncConfiguration.passphrase
     }
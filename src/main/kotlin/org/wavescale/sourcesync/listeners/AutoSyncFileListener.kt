@@ -0,0 +1,51 @@
+package org.wavescale.sourcesync.listeners
+
+import com.intellij.openapi.components.service
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.roots.ProjectFileIndex
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.openapi.vfs.newvfs.BulkFileListener
+import com.intellij.openapi.vfs.newvfs.events.VFileContentChangeEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileCopyEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileCreateEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent
+import com.intellij.project.stateStore
+import org.wavescale.sourcesync.services.AutoSyncService
+
+/**
+ * Hands the files of the project that are saved, created, copied, moved or renamed from within the IDE to the
+ * [AutoSyncService]. Changes made by other programs and picked up by a VFS refresh are left alone, so a branch
+ * checkout or a build does not trigger uploads.
+ */
+class AutoSyncFileListener(private val project: Project) : BulkFileListener {
+
+    override fun after(events: List<VFileEvent>) {
+        if (project.isDisposed) {
+            return
+        }
+        val autoSync = project.service<AutoSyncService>()
+        if (!autoSync.isEnabled()) {
+            return
+        }
+
+        val fileIndex = ProjectFileIndex.getInstance(project)
+        val directoryStore = project.stateStore.directoryStorePath
+        val saved = events.asSequence()
+            .filter { it.isFromSave || !it.isFromRefresh }
+            .mapNotNull { it.changedFile() }
+            .filter { !it.isDirectory && it.isInLocalFileSystem && fileIndex.isInContent(it) && !fileIndex.isExcluded(it) }
+            .map { it.toNioPath() }
+            .filter { directoryStore == null || !it.startsWith(directoryStore) }
+            .toList()
+        autoSync.filesSaved(saved)
+    }
+
+    private fun VFileEvent.changedFile(): VirtualFile? = when (this) {
+        is VFileContentChangeEvent, is VFileCreateEvent, is VFileMoveEvent -> file
+        is VFileCopyEvent -> findCreatedFile()
+        is VFilePropertyChangeEvent -> file.takeIf { isRename }
+        else -> null
+    }
+}
@@ -0,0 +1,99 @@
+package org.wavescale.sourcesync.services
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.project.Project
+import com.intellij.project.stateStore
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import org.wavescale.sourcesync.api.Utils
+import org.wavescale.sourcesync.synchronizer.exclusionMatcher
+import org.wavescale.sourcesync.synchronizer.relativeExclusionPath
+
+private const val QUIET_PERIOD_MILLIS = 300L
+private const val MAX_DELAY_MILLIS = 1_500L
+
+/**
+ * Uploads the files saved in the project to the main remote connection, when the connection has
+ * [auto sync on save][org.wavescale.sourcesync.configurations.BaseSyncConfiguration.autoSyncOnSave] enabled.
+ *
+ * Saved files are collected until no file was saved for a short while, and then uploaded together. Successive saves
+ * of the same file end up in a single upload, and a "Save All" or a refactoring that touches hundreds of files ends up
+ * in a single batch. A burst that goes on is still uploaded every [MAX_DELAY_MILLIS]. Batches are handed to the
+ * [SyncQueueService], which uploads them over the SSH connection the [SshSessionPool] keeps open between syncs.
+ */
+@Service(Service.Level.PROJECT)
+class AutoSyncService(private val project: Project) : Disposable {
+    private val pending = LinkedHashSet<Path>()
+    private var firstPendingAt = 0L
+    private var scheduledFlush: ScheduledFuture<*>? = null
+    private var disposed = false
+
+    fun isEnabled() = project.service<SyncRemoteConfigurationsService>().mainConnection()?.autoSyncOnSave == true
+
+    /**
+     * Queues the [saved] files for the next batch and postpones the batch until the saves calm down.
+     */
+    fun filesSaved(saved: Collection<Path>) {
+        if (saved.isEmpty()) {
+            return
+        }
+        synchronized(pending) {
+            if (disposed) {
+                return
+            }
+            val now = System.currentTimeMillis()
+            if (pending.isEmpty()) {
+                firstPendingAt = now
+            }
+            pending.addAll(saved)
+            scheduledFlush?.cancel(false)
+            val delay = QUIET_PERIOD_MILLIS.coerceAtMost(firstPendingAt + MAX_DELAY_MILLIS - now).coerceAtLeast(0)
+            scheduledFlush = AppExecutorUtil.getAppScheduledExecutorService().schedule(::flush, delay, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    private fun flush() {
+        val batch = synchronized(pending) {
+            scheduledFlush = null
+            pending.toList().also { pending.clear() }
+        }
+        if (batch.isEmpty() || project.isDisposed) {
+            return
+        }
+        val configuration = project.service<SyncRemoteConfigurationsService>().mainConnection()
+        if (configuration == null || !configuration.autoSyncOnSave) {
+            return
+        }
+
+        val projectStore = project.stateStore
+        val projectBase = projectStore.projectBasePath
+        val matcher = configuration.exclusionMatcher(projectBase)
+        val files = batch
+            .filter { Files.isRegularFile(it) && !matcher.isExcludedWithParents(relativeExclusionPath(it, projectBase), false) }
+            .map { Pair(it.toString(), Utils.relativeToProjectPath(it, projectStore)) }
+        if (files.isEmpty()) {
+            return
+        }
+
+        logger.info("Auto syncing ${files.size} saved files to ${configuration.name}")
+        project.service<SyncQueueService>().enqueue(configuration, files, SyncPriority.AUTO_SYNC)
+    }
+
+    override fun dispose() {
+        synchronized(pending) {
+            disposed = true
+            scheduledFlush?.cancel(false)
+            pending.clear()
+        }
+    }
+
+    companion object {
+        private val logger = logger<AutoSyncService>()
+    }
+}
@@ -0,0 +1,40 @@
+package org.wavescale.sourcesync.services
+
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.util.registry.Registry
+import java.util.concurrent.ConcurrentHashMap
+import org.wavescale.sourcesync.configurations.BaseSyncConfiguration
+import org.wavescale.sourcesync.synchronizer.BandwidthLimiter
+import org.wavescale.sourcesync.synchronizer.TokenBucket
+
+private const val GLOBAL_LIMIT_REGISTRY_KEY = "sourcesync.bandwidth.limit.kib"
+
+/**
+ * Hands out the [BandwidthLimiter] of every upload. The limit of a connection is shared by all the syncs running to
+ * it, and the limit set with the `sourcesync.bandwidth.limit.kib` registry key is shared by all the syncs of the
+ * application, so a batch with several parallel workers, or several batches at once, can't go over either of them.
+ */
+@Service(Service.Level.APP)
+class BandwidthService {
+    private var globalBucket: TokenBucket? = null
+    private val connectionBuckets = ConcurrentHashMap<String, TokenBucket>()
+
+    /**
+     * Returns the limiter for the uploads to [configuration], or `null` if they are not limited at all. A changed limit
+     * also slows down or speeds up the uploads that are already running, once the next sync asks for its limiter.
+     */
+    fun limiterFor(configuration: BaseSyncConfiguration): BandwidthLimiter? {
+        val buckets = ArrayList<TokenBucket>(2)
+        val connectionLimit = configuration.bandwidthLimitKiB.toLong() * 1024
+        if (connectionLimit > 0) {
+            buckets.add(connectionBuckets.computeIfAbsent(configuration.name) { TokenBucket(connectionLimit) }.apply { setRate(connectionLimit) })
+        } else {
+            connectionBuckets.remove(configuration.name)
+        }
+        val globalLimit = Registry.intValue(GLOBAL_LIMIT_REGISTRY_KEY, 0).toLong() * 1024
+        if (globalLimit > 0) {
+            buckets.add(synchronized(this) { globalBucket ?: TokenBucket(globalLimit).also { globalBucket = it } }.apply { setRate(globalLimit) })
+        }
+        return if (buckets.isEmpty()) null else BandwidthLimiter(buckets)
+    }
+}
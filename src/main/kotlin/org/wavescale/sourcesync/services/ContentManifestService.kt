@@ -0,0 +1,44 @@
+package org.wavescale.sourcesync.services
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.project.getProjectDataPath
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import org.wavescale.sourcesync.configurations.BaseSyncConfiguration
+import org.wavescale.sourcesync.synchronizer.ContentManifest
+
+/**
+ * Hands out the [ContentManifest] of every remote target the project uploads to. Manifests are stored in the system
+ * directory of the project, one per remote target, and stay open until the project is closed.
+ */
+@Service(Service.Level.PROJECT)
+class ContentManifestService(private val project: Project) : Disposable {
+    private val manifests = ConcurrentHashMap<String, ContentManifest>()
+
+    /**
+     * Returns the manifest of the remote target of [configuration], or `null` if it can't be opened.
+     */
+    fun manifestFor(configuration: BaseSyncConfiguration): ContentManifest? {
+        val target = targetOf(configuration)
+        manifests[target]?.let { return it }
+        synchronized(manifests) {
+            return manifests[target] ?: ContentManifest.open(project.getProjectDataPath("sourcesync").resolve("manifest-$target"))
+                ?.also { manifests[target] = it }
+        }
+    }
+
+    override fun dispose() {
+        manifests.values.forEach(ContentManifest::close)
+        manifests.clear()
+    }
+
+    /**
+     * The manifest follows the remote directory the files end up in, not the name of the configuration.
+     */
+    private fun targetOf(configuration: BaseSyncConfiguration): String {
+        val target = with(configuration) { "$protocol://$username@$hostname:$port/$workspaceBasePath" }
+        return MessageDigest.getInstance("MD5").digest(target.toByteArray()).joinToString("") { "%02x".format(it) }
+    }
+}
@@ -0,0 +1,203 @@
+package org.wavescale.sourcesync.services
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.jcraft.jsch.JSchException
+import com.jcraft.jsch.Session
+import com.jcraft.jsch.SocketFactory
+import java.io.InputStream
+import java.io.OutputStream
+import java.net.Socket
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import org.wavescale.sourcesync.configurations.AuthenticationType
+import org.wavescale.sourcesync.configurations.BaseSyncConfiguration
+import org.wavescale.sourcesync.configurations.SyncConfigurationType
+
+private const val KEEP_ALIVE_INTERVAL_MILLIS = 15_000
+private const val KEEP_ALIVE_MAX_UNANSWERED = 3
+private const val HEALTH_CHECK_TIMEOUT_MILLIS = 10_000
+private const val MAX_IDLE_MILLIS = 5 * 60_000L
+private const val EVICTION_PERIOD_SECONDS = 30L
+
+/**
+ * Keeps SSH sessions open between syncs so that repeated uploads to the same remote connection skip the TCP connect,
+ * key exchange and authentication.
+ *
+ * Sessions are keyed by the identity of the remote connection and can be used by several syncs at the same time,
+ * since every sync opens its own channels. Idle sessions are kept alive with SSH keepalive messages and are
+ * disconnected after a few minutes of inactivity. A pooled session is only handed out once a channel was opened on it,
+ * otherwise it is replaced by a new session.
+ */
+@Service(Service.Level.APP)
+class SshSessionPool : Disposable {
+    private val sessions = ConcurrentHashMap<SessionKey, PooledSession>()
+    private val evictionTask = AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay(
+        ::evictIdleSessions,
+        EVICTION_PERIOD_SECONDS,
+        EVICTION_PERIOD_SECONDS,
+        TimeUnit.SECONDS
+    )
+
+    /**
+     * Returns a connected session for [configuration]. A pooled session is reused if a channel can still be opened on
+     * it, otherwise it is evicted and a new one is created with [createSession] and connected. Compressed and plain sessions to the same remote are
+     * pooled separately.
+     *
+     * Every acquired session must be handed back with [release].
+     */
+    @Throws(JSchException::class)
+    fun acquire(configuration: BaseSyncConfiguration, compressed: Boolean, createSession: () -> Session): Session {
+        val key = SessionKey.of(configuration, compressed)
+        while (true) {
+            val pooled = sessions.computeIfAbsent(key) { PooledSession() }
+            synchronized(pooled) {
+                // the entry might have been evicted while we were waiting for the lock
+                if (sessions[key] === pooled) {
+                    return pooled.acquire(configuration, createSession)
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands back a session obtained with [acquire]. The session stays open so that the next sync can reuse it.
+     */
+    fun release(configuration: BaseSyncConfiguration, compressed: Boolean, session: Session) {
+        val pooled = sessions[SessionKey.of(configuration, compressed)] ?: return
+        synchronized(pooled) {
+            if (pooled.session === session) {
+                pooled.users = (pooled.users - 1).coerceAtLeast(0)
+                pooled.lastUsed = System.currentTimeMillis()
+            }
+        }
+    }
+
+    private fun evictIdleSessions() {
+        val now = System.currentTimeMillis()
+        sessions.forEach { (key, pooled) ->
+            synchronized(pooled) {
+                val session = pooled.session
+                if (session != null && pooled.users == 0 && (now - pooled.lastUsed > MAX_IDLE_MILLIS || !session.isConnected)) {
+                    logger.info("Closing idle SSH session to ${key.hostname}")
+                    session.disconnect()
+                    pooled.session = null
+                }
+                if (pooled.session == null && pooled.users == 0) {
+                    sessions.remove(key, pooled)
+                }
+            }
+        }
+    }
+
+    override fun dispose() {
+        evictionTask.cancel(false)
+        sessions.values.forEach { pooled ->
+            synchronized(pooled) {
+                pooled.session?.disconnect()
+                pooled.session = null
+            }
+        }
+        sessions.clear()
+    }
+
+    private class PooledSession {
+        var session: Session? = null
+        var users = 0
+        var lastUsed = 0L
+
+        fun acquire(configuration: BaseSyncConfiguration, createSession: () -> Session): Session {
+            val current = session
+            if (current != null) {
+                if (isHealthy(current)) {
+                    users++
+                    lastUsed = System.currentTimeMillis()
+                    return current
+                }
+                logger.info("SSH session to ${configuration.hostname} is no longer usable, reconnecting")
+                current.disconnect()
+            }
+            session = null
+            users = 0
+            val socketFactory = TimedSocketFactory()
+            val started = System.nanoTime()
+            val newSession = createSession().apply {
+                serverAliveInterval = KEEP_ALIVE_INTERVAL_MILLIS
+                serverAliveCountMax = KEEP_ALIVE_MAX_UNANSWERED
+                setSocketFactory(socketFactory)
+                connect()
+            }
+            // the session connects the socket first, everything after that is key exchange and authentication
+            val statsService = service<StatsService>()
+            statsService.record(configuration, TransferPhase.CONNECT, socketFactory.connectNanos)
+            statsService.record(configuration, TransferPhase.AUTHENTICATION, System.nanoTime() - started - socketFactory.connectNanos)
+            session = newSession
+            users++
+            lastUsed = System.currentTimeMillis()
+            return newSession
+        }
+
+        /**
+         * Opens and closes a bare session channel, a round trip the server has to answer. A keepalive would not do,
+         * since it is sent without waiting for its reply and succeeds as long as the socket accepts the bytes.
+         */
+        private fun isHealthy(current: Session): Boolean {
+            if (!current.isConnected) {
+                return false
+            }
+            return try {
+                current.openChannel("session").apply { connect(HEALTH_CHECK_TIMEOUT_MILLIS) }.disconnect()
+                true
+            } catch (e: JSchException) {
+                false
+            }
+        }
+    }
+
+    /**
+     * Opens plain sockets, like the session does without a factory, and times the TCP connect.
+     */
+    private class TimedSocketFactory : SocketFactory {
+        var connectNanos = 0L
+
+        override fun createSocket(host: String, port: Int): Socket {
+            val started = System.nanoTime()
+            return Socket(host, port).also { connectNanos = System.nanoTime() - started }
+        }
+
+        override fun getInputStream(socket: Socket): InputStream = socket.getInputStream()
+
+        override fun getOutputStream(socket: Socket): OutputStream = socket.getOutputStream()
+    }
+
+    private data class SessionKey(
+        val protocol: SyncConfigurationType,
+        val name: String,
+        val hostname: String,
+        val port: String,
+        val username: String,
+        val authenticationType: AuthenticationType,
+        val privateKey: String?,
+        val compressed: Boolean
+    ) {
+        companion object {
+            fun of(configuration: BaseSyncConfiguration, compressed: Boolean) = SessionKey(
+                configuration.protocol,
+                configuration.name,
+                configuration.hostname,
+                configuration.port,
+                configuration.username,
+                configuration.authenticationType,
+                configuration.privateKey,
+                compressed
+            )
+        }
+    }
+
+    companion object {
+        private val logger = logger<SshSessionPool>()
+    }
+}
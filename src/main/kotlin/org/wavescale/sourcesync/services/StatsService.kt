@@ -1,16 +1,182 @@
 package org.wavescale.sourcesync.services
 
 import com.intellij.openapi.components.Service
+import java.time.Instant
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+import kotlinx.serialization.SerialName
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.wavescale.sourcesync.configurations.BaseSyncConfiguration
+
+private val NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1).toDouble()
+
+/**
+ * The steps a transfer goes through, timed separately so that a slow sync can be traced to the step that is slow.
+ */
+enum class TransferPhase(val key: String) {
+    /**
+     * Opening the TCP connection to the remote.
+     */
+    CONNECT("connect"),
+
+    /**
+     * SSH key exchange and user authentication.
+     */
+    AUTHENTICATION("authentication"),
+
+    /**
+     * Opening a SFTP or exec channel on an already connected session.
+     */
+    CHANNEL_OPEN("channel_open"),
+
+    /**
+     * Checking that remote directories exist and creating the missing ones.
+     */
+    DIRECTORIES("directories"),
+
+    /**
+     * Sending the content of the files.
+     */
+    TRANSFER("transfer"),
+
+    /**
+     * Setting the modification time of the uploaded files.
+     */
+    TIMESTAMPS("timestamps")
+}
 
 @Service(Service.Level.APP)
 class StatsService {
-    private var successfulUploads = 0
+    private val successfulUploads = AtomicInteger()
+    private val connections = ConcurrentHashMap<String, ConnectionStats>()
+
     fun registerSuccessfulUpload() {
-        successfulUploads++
+        successfulUploads.incrementAndGet()
     }
 
-    fun eligibleForDonations(): Boolean = when (successfulUploads) {
+    /**
+     * Registers a batch of successful uploads at once.
+     *
+     * @return `true` if the batch reached a number of uploads that is eligible for donations
+     */
+    fun registerSuccessfulUploads(count: Int): Boolean = (1..count)
+        .map { isDonationMilestone(successfulUploads.incrementAndGet()) }
+        .any { it }
+
+    fun eligibleForDonations(): Boolean = isDonationMilestone(successfulUploads.get())
+
+    private fun isDonationMilestone(uploads: Int) = when (uploads) {
         10, 30, 60, 100 -> true
-        else -> successfulUploads % 100 == 0
+        else -> uploads % 100 == 0
+    }
+
+    /**
+     * Records that [phase] took [nanos] for a transfer to the remote of [configuration].
+     */
+    fun record(configuration: BaseSyncConfiguration, phase: TransferPhase, nanos: Long) {
+        statsOf(configuration).phases[phase.ordinal].record(nanos)
+    }
+
+    /**
+     * Runs [block] and records the time it took as [phase].
+     */
+    inline fun <T> measure(configuration: BaseSyncConfiguration, phase: TransferPhase, block: () -> T): T {
+        val started = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            record(configuration, phase, System.nanoTime() - started)
+        }
+    }
+
+    /**
+     * Records a file uploaded to the remote of [configuration] in [nanos], from the first request made for it to its
+     * last acknowledgement. [bytes] are the bytes actually sent, less than the size of the file for delta transfers and
+     * resumed uploads.
+     */
+    fun recordFile(configuration: BaseSyncConfiguration, bytes: Long, nanos: Long) {
+        val stats = statsOf(configuration)
+        stats.files.increment()
+        stats.bytesSent.add(bytes)
+        stats.fileLatency.record(nanos)
+        if (bytes > 0 && nanos > 0) {
+            stats.fileThroughput.record((bytes * 1e9 / nanos).toLong())
+        }
+    }
+
+    /**
+     * Records [files] files of [bytes] in total uploaded at once, when they can't be timed one by one.
+     */
+    fun recordFiles(configuration: BaseSyncConfiguration, files: Int, bytes: Long) {
+        val stats = statsOf(configuration)
+        stats.files.add(files.toLong())
+        stats.bytesSent.add(bytes)
+    }
+
+    /**
+     * Returns everything recorded since the IDE started, as JSON. Times are in milliseconds and throughput in bytes
+     * per second.
+     */
+    fun exportJson(): String {
+        val snapshot = StatsSnapshot(
+            exportedAt = Instant.now().toString(),
+            connections = connections.entries.sortedBy { it.key }.map { (name, stats) -> stats.snapshot(name) }
+        )
+        return json.encodeToString(snapshot)
+    }
+
+    fun reset() {
+        connections.clear()
+    }
+
+    private fun statsOf(configuration: BaseSyncConfiguration) = connections.computeIfAbsent(configuration.name) { ConnectionStats() }
+
+    private class ConnectionStats {
+        val phases = Array(TransferPhase.values().size) { TransferHistogram() }
+        val fileLatency = TransferHistogram()
+        val fileThroughput = TransferHistogram()
+        val files = LongAdder()
+        val bytesSent = LongAdder()
+
+        fun snapshot(name: String) = ConnectionStatsSnapshot(
+            name = name,
+            files = files.sum(),
+            bytesSent = bytesSent.sum(),
+            phases = TransferPhase.values().associate { it.key to phases[it.ordinal].snapshot(NANOS_PER_MILLI) },
+            fileLatency = fileLatency.snapshot(NANOS_PER_MILLI),
+            fileThroughput = fileThroughput.snapshot()
+        )
+    }
+
+    @Serializable
+    private data class StatsSnapshot(
+        @SerialName("exported_at")
+        val exportedAt: String,
+        @SerialName("connections")
+        val connections: List<ConnectionStatsSnapshot>
+    )
+
+    @Serializable
+    private data class ConnectionStatsSnapshot(
+        @SerialName("name")
+        val name: String,
+        @SerialName("files")
+        val files: Long,
+        @SerialName("bytes_sent")
+        val bytesSent: Long,
+        @SerialName("phases_ms")
+        val phases: Map<String, HistogramSnapshot>,
+        @SerialName("file_latency_ms")
+        val fileLatency: HistogramSnapshot,
+        @SerialName("file_throughput_bytes_per_second")
+        val fileThroughput: HistogramSnapshot
+    )
+
+    companion object {
+        private val json = Json { prettyPrint = true }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,243 @@
+package org.wavescale.sourcesync.services
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.progress.Task
+import com.intellij.openapi.project.Project
+import java.nio.file.Path
+import org.wavescale.sourcesync.configurations.BaseSyncConfiguration
+import org.wavescale.sourcesync.synchronizer.synchronizerFor
+
+private const val BATCH_SIZE = 256
+private const val WORKERS_PER_TARGET = 2
+
+/**
+ * How urgently queued files are uploaded. Files of a higher priority are always drained before the files of a lower one.
+ */
+enum class SyncPriority {
+    /**
+     * A single file the user explicitly asked to upload.
+     */
+    INTERACTIVE,
+
+    /**
+     * Files saved while auto sync on save is enabled.
+     */
+    AUTO_SYNC,
+
+    /**
+     * Multi-file selections, VCS changes and directory uploads.
+     */
+    BATCH
+}
+
+/**
+ * Queues every upload of the project and drains the queue of each remote target with a fixed number of workers, so
+ * that overlapping syncs to the same target never upload the same file twice or race each other.
+ *
+ * A file queued again before it is uploaded keeps a single entry, with the content it has when it is finally
+ * uploaded. Workers take the queued files in batches, highest priority first, so an interactive upload waits for at
+ * most the batches already being uploaded. A file being uploaded by a worker is not handed out to another worker
+ * until that upload is over.
+ */
+@Service(Service.Level.PROJECT)
+class SyncQueueService(private val project: Project) : Disposable {
+    private val lock = Any()
+    private val targets = HashMap<String, TargetQueue>()
+    private var disposed = false
+
+    /**
+     * Queues [files], pairs of local path and upload location, for upload to the remote of [configuration].
+     */
+    fun enqueue(configuration: BaseSyncConfiguration, files: Collection<Pair<String, Path>>, priority: SyncPriority) {
+        if (files.isEmpty()) {
+            return
+        }
+        val workersToStart = synchronized(lock) {
+            if (disposed) {
+                return
+            }
+            val key = targetOf(configuration)
+            val target = targets.getOrPut(key) { TargetQueue(key) }
+            target.configuration = configuration
+            files.forEach { target.add(it, priority) }
+            target.reserveWorkers()
+        }
+        service<SyncStatusService>().statusChanged()
+        workersToStart.forEach { it.start() }
+    }
+
+    /**
+     * Number of files waiting to be uploaded.
+     */
+    fun queueDepth() = synchronized(lock) { targets.values.sumOf { it.size } }
+
+    /**
+     * Number of files currently being uploaded.
+     */
+    fun inFlightCount() = synchronized(lock) { targets.values.sumOf { it.inFlight.size } }
+
+    fun isBusy() = synchronized(lock) { targets.isNotEmpty() }
+
+    override fun dispose() {
+        synchronized(lock) {
+            disposed = true
+            targets.values.forEach { it.clear() }
+        }
+    }
+
+    private inner class TargetQueue(val key: String) {
+        lateinit var configuration: BaseSyncConfiguration
+        private val queued = Array(SyncPriority.values().size) { LinkedHashMap<String, Pair<String, Path>>() }
+        val inFlight = HashSet<String>()
+        var workers = 0
+
+        val size get() = queued.sumOf { it.size }
+
+        fun add(file: Pair<String, Path>, priority: SyncPriority) {
+            // a file queued again keeps the most urgent of its priorities
+            val previous = queued.indexOfFirst { it.remove(file.first) != null }
+            val level = if (previous in 0 until priority.ordinal) previous else priority.ordinal
+            queued[level][file.first] = file
+        }
+
+        /**
+         * Takes the next batch, made of the most urgent queued files that are not being uploaded already.
+         */
+        fun takeBatch(): List<Pair<String, Path>> {
+            val batch = ArrayList<Pair<String, Path>>()
+            for (level in queued) {
+                val files = level.values.iterator()
+                while (files.hasNext() && batch.size < BATCH_SIZE) {
+                    val file = files.next()
+                    if (file.first !in inFlight) {
+                        batch.add(file)
+                        files.remove()
+                    }
+                }
+                if (batch.isNotEmpty()) {
+                    break
+                }
+            }
+            batch.mapTo(inFlight) { it.first }
+            return batch
+        }
+
+        fun clear() {
+            queued.forEach { it.clear() }
+        }
+
+        /**
+         * Reserves as many new workers as the queued files need, up to [WORKERS_PER_TARGET] in total. Files that are
+         * being uploaded will be taken by the worker uploading them, once it is done with them.
+         */
+        fun reserveWorkers(): List<Worker> {
+            if (disposed) {
+                return emptyList()
+            }
+            val available = queued.sumOf { files -> files.keys.count { it !in inFlight } }
+            val needed = ((available + BATCH_SIZE - 1) / BATCH_SIZE).coerceAtMost(WORKERS_PER_TARGET)
+            return (workers until needed).map {
+                workers++
+                Worker(this, configuration)
+            }
+        }
+    }
+
+    /**
+     * Uploads the batches of a target until there is nothing left it can take, with a single synchronizer and a
+     * single report of the failures.
+     */
+    private inner class Worker(private val target: TargetQueue, private val configuration: BaseSyncConfiguration) {
+        private var current: List<Pair<String, Path>> = emptyList()
+
+        fun start() {
+            ProgressManager.getInstance().run(object : Task.Backgroundable(project, "Uploading to ${configuration.name}", true) {
+                override fun run(indicator: ProgressIndicator) {
+                    drain(indicator)
+                }
+            })
+        }
+
+        private fun drain(indicator: ProgressIndicator) {
+            val fileSynchronizer = synchronizerFor(configuration, project)
+            try {
+                if (fileSynchronizer.connect()) {
+                    fileSynchronizer.syncFileChunks(Batches(), indicator)
+                } else {
+                    // the target can't be reached, don't keep retrying the files queued for it
+                    logger.info("Dropping the uploads queued for ${configuration.name}, the remote can't be reached")
+                    synchronized(lock) { target.clear() }
+                }
+            } catch (e: ProcessCanceledException) {
+                // canceling an upload cancels what is queued behind it for the same target
+                logger.info("Uploads to ${configuration.name} canceled, dropping the files queued for it")
+                synchronized(lock) { target.clear() }
+                throw e
+            } finally {
+                fileSynchronizer.disconnect()
+                finish()
+            }
+        }
+
+        private fun finish() {
+            val workersToStart = synchronized(lock) {
+                release()
+                target.workers--
+                // files skipped because another worker was uploading them are still queued
+                target.reserveWorkers().also {
+                    if (target.workers == 0 && target.size == 0 && targets[target.key] === target) {
+                        targets.remove(target.key)
+                    }
+                }
+            }
+            service<SyncStatusService>().statusChanged()
+            workersToStart.forEach { it.start() }
+        }
+
+        private fun release() {
+            target.inFlight.removeAll(current.mapTo(HashSet()) { it.first })
+            current = emptyList()
+        }
+
+        /**
+         * Hands out the next batch once the previous one is uploaded.
+         */
+        private inner class Batches : Iterator<Collection<Pair<String, Path>>> {
+            private var next: List<Pair<String, Path>>? = null
+
+            override fun hasNext(): Boolean {
+                if (next == null) {
+                    next = synchronized(lock) {
+                        release()
+                        target.takeBatch().also { current = it }
+                    }.ifEmpty { null }
+                    service<SyncStatusService>().statusChanged()
+                }
+                return next != null
+            }
+
+            override fun next(): Collection<Pair<String, Path>> {
+                if (!hasNext()) {
+                    throw NoSuchElementException()
+                }
+                return next!!.also { next = null }
+            }
+        }
+    }
+
+    /**
+     * Syncs of different configurations that upload to the same remote directory share a queue.
+     */
+    private fun targetOf(configuration: BaseSyncConfiguration) =
+        with(configuration) { "$protocol://$username@$hostname:$port/$workspaceBasePath" }
+
+    companion object {
+        private val logger = logger<SyncQueueService>()
+    }
+}
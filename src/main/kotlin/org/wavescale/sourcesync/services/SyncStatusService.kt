@@ -2,22 +2,37 @@ package org.wavescale.sourcesync.services
 
 import com.intellij.ide.ActivityTracker
 import com.intellij.openapi.components.Service
-import java.util.Collections
+import com.intellij.openapi.components.serviceIfCreated
+import com.intellij.openapi.project.ProjectManager
 
 
+/**
+ * Reports the state of the [SyncQueueService] of every open project, for the widgets that show whether a sync is
+ * running.
+ */
 @Service(Service.Level.APP)
 class SyncStatusService {
-    private val syncJobs = Collections.synchronizedSet(mutableSetOf<String>())
 
-    fun addRunningSync(connectionName: String) {
-        syncJobs.add(connectionName)
-        ActivityTracker.getInstance().inc()
-    }
+    /**
+     * Number of files waiting to be uploaded.
+     */
+    fun queueDepth() = syncQueues().sumOf { it.queueDepth() }
+
+    /**
+     * Number of files currently being uploaded.
+     */
+    fun inFlightCount() = syncQueues().sumOf { it.inFlightCount() }
+
+    fun isAnySyncJobRunning() = syncQueues().any { it.isBusy() }
 
-    fun removeRunningSync(connectionName: String) {
-        syncJobs.remove(connectionName)
+    /**
+     * Lets the widgets know that the sync status changed.
+     */
+    fun statusChanged() {
         ActivityTracker.getInstance().inc()
     }
 
-    fun isAnySyncJobRunning() = syncJobs.isNotEmpty()
-}
\ No newline at end of file
+    private fun syncQueues() = ProjectManager.getInstance().openProjects.asSequence()
+        .filter { !it.isDisposed }
+        .mapNotNull { it.serviceIfCreated<SyncQueueService>() }
+}
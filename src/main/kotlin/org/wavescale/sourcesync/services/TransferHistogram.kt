@@ -0,0 +1,107 @@
+package org.wavescale.sourcesync.services
+
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.atomic.LongAdder
+import kotlinx.serialization.SerialName
+import kotlinx.serialization.Serializable
+
+private const val SUB_BUCKET_BITS = 3
+private const val SUB_BUCKETS = 1 shl SUB_BUCKET_BITS
+private const val BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS
+
+/**
+ * A histogram of non negative values that can be recorded from any number of threads without locking.
+ *
+ * Values are counted in logarithmic buckets, each power of two being split in [SUB_BUCKETS] buckets, so the memory
+ * used is fixed no matter how many values are recorded and percentiles are reported with an error of at most 12.5%.
+ */
+internal class TransferHistogram {
+    private val buckets = AtomicLongArray(BUCKETS)
+    private val count = LongAdder()
+    private val total = LongAdder()
+    private val max = AtomicLong()
+
+    fun record(value: Long) {
+        val v = value.coerceAtLeast(0)
+        buckets.incrementAndGet(bucketOf(v))
+        count.increment()
+        total.add(v)
+        max.accumulateAndGet(v, ::maxOf)
+    }
+
+    /**
+     * Summarizes the recorded values, divided by [unit]. Values recorded while the snapshot is taken may or may not be
+     * part of it.
+     */
+    fun snapshot(unit: Double = 1.0): HistogramSnapshot {
+        val counts = LongArray(BUCKETS) { buckets.get(it) }
+        val recorded = counts.sum()
+        return HistogramSnapshot(
+            count = recorded,
+            total = total.sum() / unit,
+            mean = if (recorded == 0L) 0.0 else total.sum() / unit / recorded,
+            max = max.get() / unit,
+            p50 = percentile(counts, recorded, 0.50) / unit,
+            p90 = percentile(counts, recorded, 0.90) / unit,
+            p99 = percentile(counts, recorded, 0.99) / unit
+        )
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the value at [fraction] of the recorded values.
+     */
+    private fun percentile(counts: LongArray, recorded: Long, fraction: Double): Double {
+        if (recorded == 0L) {
+            return 0.0
+        }
+        val rank = (recorded * fraction).toLong().coerceIn(1, recorded)
+        var seen = 0L
+        for (bucket in counts.indices) {
+            seen += counts[bucket]
+            if (seen >= rank) {
+                return minOf(lowerBoundOf(bucket + 1) - 1, max.get()).toDouble()
+            }
+        }
+        return max.get().toDouble()
+    }
+
+    private fun bucketOf(value: Long): Int {
+        if (value < SUB_BUCKETS) {
+            return value.toInt()
+        }
+        val exponent = 63 - value.countLeadingZeroBits()
+        val subBucket = (value ushr (exponent - SUB_BUCKET_BITS)).toInt() and (SUB_BUCKETS - 1)
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket
+    }
+
+    private fun lowerBoundOf(bucket: Int): Long {
+        if (bucket < SUB_BUCKETS) {
+            return bucket.toLong()
+        }
+        if (bucket >= BUCKETS) {
+            return Long.MAX_VALUE
+        }
+        val exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1
+        val subBucket = bucket % SUB_BUCKETS
+        return (SUB_BUCKETS + subBucket).toLong() shl (exponent - SUB_BUCKET_BITS)
+    }
+}
+
+@Serializable
+data class HistogramSnapshot(
+    @SerialName("count")
+    val count: Long,
+    @SerialName("total")
+    val total: Double,
+    @SerialName("mean")
+    val mean: Double,
+    @SerialName("max")
+    val max: Double,
+    @SerialName("p50")
+    val p50: Double,
+    @SerialName("p90")
+    val p90: Double,
+    @SerialName("p99")
+    val p99: Double
+)
@@ -0,0 +1,133 @@
+package org.wavescale.sourcesync.synchronizer
+
+import java.io.FilterInputStream
+import java.io.FilterOutputStream
+import java.io.InputStream
+import java.io.InterruptedIOException
+import java.io.OutputStream
+import java.util.concurrent.TimeUnit
+
+private const val CHUNKS_PER_SECOND = 20
+
+/**
+ * A token bucket that lets [bytesPerSecond] bytes through on average and up to one second worth of bytes at once, so
+ * a small upload started after a pause goes through without waiting.
+ *
+ * Bytes are taken from the bucket before they are sent. A transfer that takes more than what is left puts the bucket
+ * in debt and waits for the debt to be paid back, so concurrent transfers are served in the order they asked and the
+ * average rate never goes over the limit.
+ */
+internal class TokenBucket(bytesPerSecond: Long) {
+    private var rate = bytesPerSecond.toDouble()
+    private var tokens = rate
+    private var lastRefill = System.nanoTime()
+
+    /**
+     * Most bytes a transfer should take at once for the throughput to stay smooth.
+     */
+    val chunkBytes get() = synchronized(this) { (rate / CHUNKS_PER_SECOND).toLong().coerceIn(1024, Int.MAX_VALUE.toLong()).toInt() }
+
+    /**
+     * Changes the rate, keeping the bytes already taken.
+     */
+    fun setRate(bytesPerSecond: Long) = synchronized(this) {
+        refill()
+        rate = bytesPerSecond.toDouble()
+        tokens = tokens.coerceAtMost(rate)
+    }
+
+    /**
+     * Takes [bytes] from the bucket and returns how long the caller has to wait before sending them, in nanoseconds.
+     */
+    fun take(bytes: Int): Long = synchronized(this) {
+        refill()
+        tokens -= bytes
+        if (tokens >= 0) 0 else (-tokens / rate * TimeUnit.SECONDS.toNanos(1)).toLong()
+    }
+
+    private fun refill() {
+        val now = System.nanoTime()
+        tokens = (tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1)).coerceAtMost(rate)
+        lastRefill = now
+    }
+}
+
+/**
+ * Limits the throughput of the uploads of a connection to the rate of every one of its [buckets], usually the limit of
+ * the connection itself and the limit shared by all the connections.
+ */
+class BandwidthLimiter internal constructor(private val buckets: List<TokenBucket>) {
+
+    internal val chunkSize get() = buckets.minOf { it.chunkBytes }
+
+    /**
+     * Waits until [bytes] can be sent without going over any of the limits.
+     */
+    @Throws(InterruptedIOException::class)
+    fun acquire(bytes: Int) {
+        if (bytes <= 0) {
+            return
+        }
+        // the buckets are independent, wait for the slowest one
+        val wait = buckets.maxOf { it.take(bytes) }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait)
+            } catch (e: InterruptedException) {
+                Thread.currentThread().interrupt()
+                throw InterruptedIOException("Upload interrupted while waiting for bandwidth")
+            }
+        }
+    }
+}
+
+/**
+ * Returns this stream limited by [limiter], or this stream as is when there is no limit.
+ */
+internal fun InputStream.throttled(limiter: BandwidthLimiter?): InputStream = if (limiter == null) this else ThrottledInputStream(this, limiter)
+
+/**
+ * Returns this stream limited by [limiter], or this stream as is when there is no limit.
+ */
+internal fun OutputStream.throttled(limiter: BandwidthLimiter?): OutputStream = if (limiter == null) this else ThrottledOutputStream(this, limiter)
+
+/**
+ * Waits for the bandwidth after every read and before handing out the bytes, with reads no larger than what the
+ * limiter lets through at once. Only the bytes actually read are counted, so the end of a stream costs nothing, and
+ * bytes skipped are not counted at all.
+ */
+private class ThrottledInputStream(input: InputStream, private val limiter: BandwidthLimiter) : FilterInputStream(input) {
+    override fun read(): Int {
+        val b = super.read()
+        if (b >= 0) {
+            limiter.acquire(1)
+        }
+        return b
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        val read = super.read(b, off, minOf(len, limiter.chunkSize))
+        limiter.acquire(read)
+        return read
+    }
+}
+
+/**
+ * Waits for the bandwidth before every write, splitting large writes into chunks the limiter lets through at once.
+ */
+private class ThrottledOutputStream(out: OutputStream, private val limiter: BandwidthLimiter) : FilterOutputStream(out) {
+    override fun write(b: Int) {
+        limiter.acquire(1)
+        out.write(b)
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        var written = 0
+        while (written < len) {
+            val chunk = minOf(len - written, limiter.chunkSize)
+            limiter.acquire(chunk)
+            out.write(b, off + written, chunk)
+            written += chunk
+        }
+    }
+}
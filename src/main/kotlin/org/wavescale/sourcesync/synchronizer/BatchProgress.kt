@@ -0,0 +1,113 @@
+package org.wavescale.sourcesync.synchronizer
+
+import com.intellij.ide.nls.NlsMessages
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.util.text.StringUtil
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
+import org.wavescale.sourcesync.SourcesyncBundle
+
+private const val PUBLISH_PERIOD_NANOS = 100_000_000L
+
+// weight of the latest period in the throughput, enough to follow a change of speed within a couple of seconds
+private const val RATE_SMOOTHING = 0.2
+
+/**
+ * Publishes the progress of a whole batch of [totalFiles] files and [totalBytes] bytes to a [ProgressIndicator]: the
+ * fraction of the bytes handled, and as details the files handled, the current throughput and the time left.
+ *
+ * The bytes of every file, sent by any number of workers at once, are added to lock free counters. The indicator is
+ * updated at most ten times per second, by whichever worker adds bytes once the period is over, so the cost of a
+ * progress callback does not depend on how small the chunks are.
+ */
+internal class BatchProgress(private val indicator: ProgressIndicator, private val totalFiles: Int, totalBytes: Long) {
+    private val totalBytes = totalBytes.coerceAtLeast(1)
+    private val handledBytes = AtomicLong()
+    private val handledFiles = AtomicInteger()
+    private val nextPublish = AtomicLong(System.nanoTime())
+    private val lastSample = AtomicReference(Sample(System.nanoTime(), 0, 0.0))
+
+    private class Sample(val time: Long, val bytes: Long, val bytesPerSecond: Double)
+
+    init {
+        indicator.isIndeterminate = false
+    }
+
+    /**
+     * Returns the progress of a single file of [length] bytes, to be used by one worker at a time.
+     */
+    fun file(length: Long) = FileProgress(length)
+
+    inner class FileProgress internal constructor(private val length: Long) {
+        private var counted = 0L
+
+        /**
+         * Adds the bytes of this file that were sent. Bytes past the length of the file, sent by a second attempt
+         * after a failed one, are not counted again.
+         */
+        fun add(bytes: Long) {
+            val credited = bytes.coerceAtMost(length - counted)
+            if (credited > 0) {
+                counted += credited
+                handledBytes.addAndGet(credited)
+            }
+            maybePublish()
+        }
+
+        /**
+         * Marks the file as handled, uploaded or not, and counts the bytes that were never reported, like the ones a
+         * delta transfer did not have to send.
+         */
+        fun done() {
+            add(length - counted)
+            handledFiles.incrementAndGet()
+        }
+    }
+
+    /**
+     * Publishes the final state, whatever the time since the last update.
+     */
+    fun finish() {
+        publish(System.nanoTime())
+    }
+
+    private fun maybePublish() {
+        val now = System.nanoTime()
+        val next = nextPublish.get()
+        if (now >= next && nextPublish.compareAndSet(next, now + PUBLISH_PERIOD_NANOS)) {
+            publish(now)
+        }
+    }
+
+    private fun publish(now: Long) {
+        val bytes = handledBytes.get()
+        val previous = lastSample.get()
+        val elapsed = now - previous.time
+        val bytesPerSecond = if (elapsed <= 0) {
+            previous.bytesPerSecond
+        } else {
+            val current = (bytes - previous.bytes) * TimeUnit.SECONDS.toNanos(1).toDouble() / elapsed
+            if (previous.bytes == 0L) current else previous.bytesPerSecond + RATE_SMOOTHING * (current - previous.bytesPerSecond)
+        }
+        lastSample.set(Sample(now, bytes, bytesPerSecond))
+
+        indicator.fraction = bytes.toDouble() / totalBytes
+        val remaining = totalBytes - bytes
+        val timeLeft = if (bytesPerSecond > 0 && remaining > 0) {
+            NlsMessages.formatDurationApproximate((remaining / bytesPerSecond * 1000).toLong())
+        } else {
+            "-"
+        }
+        indicator.text2 = SourcesyncBundle.message(
+            "progress.batch.details",
+            handledFiles.get(),
+            totalFiles,
+            StringUtil.formatFileSize(bytes),
+            StringUtil.formatFileSize(totalBytes),
+            StringUtil.formatFileSize(bytesPerSecond.toLong()),
+            timeLeft
+        )
+    }
+}
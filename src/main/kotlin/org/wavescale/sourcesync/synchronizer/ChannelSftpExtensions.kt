@@ -17,71 +17,89 @@ fun ChannelSftp.absoluteDirExists(dirPath: String): Boolean {
 }
 
 /**
- * Checks if a local path exists on the remote. The check is done against the working directory of the sftp session.
+ * Lists the regular files of a remote directory with a single request.
+ *
+ * @return the files found in [dirPath] by name, or `null` if the directory could not be listed
  */
-fun ChannelSftp.localDirExistsOnRemote(dirPath: String): Boolean {
-    val pwd = this.pwd()
-    Paths.get(dirPath).forEach {
-        try {
-            val attrs = this.stat(it.toString())
-            if (attrs != null && attrs.isDir) {
-                this.cd(it.toString())
-            } else {
-                return@forEach
-            }
+internal fun ChannelSftp.listFiles(dirPath: String): Map<String, RemoteFileInfo>? {
+    return try {
+        this.ls(dirPath)
+            .filter { it.attrs.isReg }
+            .associate { it.filename to RemoteFileInfo(it.attrs.size, it.attrs.mTime.toLong()) }
+    } catch (e: SftpException) {
+        null
+    }
+}
 
-        } catch (e: SftpException) {
-            this.cd(pwd)
-            return false
-        }
+/**
+ * Resolves a local path against the working directory of the sftp session. No remote call is made, the working
+ * directory is tracked by the channel itself.
+ */
+fun ChannelSftp.localDirOnRemote(dirPath: String): String = remoteDirsOf(dirPath).lastOrNull() ?: this.pwd()
+
+/**
+ * Checks if a local path exists on the remote. The check is done against the working directory of the sftp session.
+ *
+ * A single `stat` is sent for the whole path, and only when the path is not already known by the [cache].
+ */
+fun ChannelSftp.localDirExistsOnRemote(dirPath: String, cache: RemoteDirectoryCache = RemoteDirectoryCache()): Boolean {
+    val dirs = remoteDirsOf(dirPath)
+    if (dirs.isEmpty() || cache.contains(dirs.last())) {
+        return true
     }
 
-    this.cd(pwd)
-    return true
+    if (this.absoluteDirExists(dirs.last())) {
+        dirs.forEach(cache::add)
+        return true
+    }
+    return false
 }
 
 /**
  * Creates a local path directory on the remote, with its parent directories as needed. The check is done against the working directory of the sftp session.
+ *
+ * Directories already known by the [cache] are not checked again, and once a missing directory is found all of its
+ * descendants are created without any further `stat`. This means a new directory costs exactly one round trip.
  */
-fun ChannelSftp.mkLocalDirsOnRemote(dirPath: String): Boolean {
-    if (this.localDirExistsOnRemote(dirPath)) {
+fun ChannelSftp.mkLocalDirsOnRemote(dirPath: String, cache: RemoteDirectoryCache = RemoteDirectoryCache()): Boolean {
+    if (this.localDirExistsOnRemote(dirPath, cache)) {
         return true
     }
 
-    val pwd = this.pwd()
-    Paths.get(dirPath).forEach {
-        if (this.localDirExistsOnRemote(it.toString())) {
-            this.cd(it.toString())
-        } else {
-            try {
-                this.mkdir(it.toString())
-                this.cd(it.toString())
-            } catch (e: SftpException) {
-                this.cd(pwd)
+    // the deepest directory is missing, look for the first one that is missing as well
+    val dirs = remoteDirsOf(dirPath)
+    var firstMissing = dirs.indexOfLast { cache.contains(it) } + 1
+    while (firstMissing < dirs.size - 1 && this.absoluteDirExists(dirs[firstMissing])) {
+        cache.add(dirs[firstMissing])
+        firstMissing++
+    }
+
+    for (dir in dirs.subList(firstMissing, dirs.size)) {
+        try {
+            this.mkdir(dir)
+        } catch (e: SftpException) {
+            // someone else might have created it in the meantime
+            if (!this.absoluteDirExists(dir)) {
+                cache.invalidate(dir)
                 return false
             }
         }
+        cache.add(dir)
     }
-    this.cd(pwd)
     return true
 }
 
 /**
- * Changes working directory on remote to a local path value. The check is done against the working directory of the sftp session.
+ * Returns the absolute remote paths of [dirPath] and of all its parents, relative to the working directory of the
+ * sftp session. The result is ordered from the top most directory to [dirPath] itself.
  */
-fun ChannelSftp.cdLocalDirsOnRemote(dirPath: String): Boolean {
-    if (!this.localDirExistsOnRemote(dirPath)) {
-        return false
-    }
-
-    val pwd = this.pwd()
-    Paths.get(dirPath).forEach {
-        if (this.localDirExistsOnRemote(it.toString())) {
-            this.cd(it.toString())
-        } else {
-            this.cd(pwd)
-            return false
+private fun ChannelSftp.remoteDirsOf(dirPath: String): List<String> {
+    var current = this.pwd().trimEnd('/')
+    return Paths.get(dirPath)
+        .map { it.toString() }
+        .filter { it.isNotEmpty() }
+        .map { segment ->
+            current = "$current/$segment"
+            current
         }
-    }
-    return true
-}
\ No newline at end of file
+}
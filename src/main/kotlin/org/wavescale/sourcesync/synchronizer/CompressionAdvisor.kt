@@ -0,0 +1,137 @@
+package org.wavescale.sourcesync.synchronizer
+
+import com.jcraft.jsch.Session
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.math.ln
+import org.wavescale.sourcesync.configurations.BaseSyncConfiguration
+
+private const val SAMPLE_SIZE = 4 * 1024
+private const val SAMPLES_PER_FILE = 3
+private const val MAX_COMPRESSIBLE_ENTROPY = 7.0 // bits per byte
+private const val FAST_LINK_BYTES_PER_SECOND = 32.0 * 1024 * 1024
+private const val MIN_MEASURED_BYTES = 1024 * 1024L
+private const val MIN_SEPARATE_GROUP_BYTES = 256 * 1024L
+private const val THROUGHPUT_SMOOTHING = 0.3
+
+private const val COMPRESSION_ALGORITHMS = "zlib@openssh.com,zlib,none"
+
+/**
+ * Asks for zlib compression of the SSH transport, in both directions. Has to be called before the session connects.
+ */
+internal fun Session.useCompression() {
+    setConfig("compression.c2s", COMPRESSION_ALGORITHMS)
+    setConfig("compression.s2c", COMPRESSION_ALGORITHMS)
+}
+
+/**
+ * Decides which files of a batch are worth sending over a compressed SSH session, for the
+ * [adaptive][org.wavescale.sourcesync.configurations.CompressionPolicy.ADAPTIVE] compression policy.
+ *
+ * SSH compresses the whole transport of a session, so the batch is split in two: the files that compress well go
+ * through a compressed session, the others through a plain one. A file compresses well if its extension says so, or,
+ * for unknown extensions, if a few samples of its content have a low entropy. Links that proved to be fast enough
+ * for compression to cost more CPU than it saves on the wire get no compression at all.
+ */
+internal object CompressionAdvisor {
+    private val compressedExtensions = setOf(
+        "7z", "aar", "apk", "avi", "br", "bz2", "ear", "flac", "gif", "gz", "heic", "jar", "jpeg", "jpg", "lz4",
+        "mkv", "mov", "mp3", "mp4", "ogg", "png", "rar", "tgz", "war", "webm", "webp", "whl", "woff", "woff2", "xz",
+        "zip", "zst"
+    )
+    private val textExtensions = setOf(
+        "c", "cc", "cpp", "cs", "css", "csv", "go", "gradle", "h", "hpp", "htm", "html", "ini", "java", "js", "json",
+        "jsx", "kt", "kts", "less", "md", "php", "properties", "py", "rb", "rs", "scss", "sh", "sql", "svg", "toml",
+        "ts", "tsx", "txt", "xml", "yaml", "yml"
+    )
+
+    private val throughputByLink = ConcurrentHashMap<String, Double>()
+
+    /**
+     * Splits [files] into the ones to send compressed and the ones to send as is. Groups too small to be worth a
+     * session of their own are merged into the other one.
+     */
+    fun partition(
+        files: Collection<Pair<String, Path>>,
+        configuration: BaseSyncConfiguration
+    ): Pair<List<Pair<String, Path>>, List<Pair<String, Path>>> {
+        if (isFastLink(configuration)) {
+            return Pair(emptyList(), files.toList())
+        }
+        val (compressible, incompressible) = files.partition { (src, _) -> isCompressible(File(src)) }
+        return when {
+            compressible.totalSize() < MIN_SEPARATE_GROUP_BYTES -> Pair(emptyList(), files.toList())
+            incompressible.totalSize() < MIN_SEPARATE_GROUP_BYTES -> Pair(files.toList(), emptyList())
+            else -> Pair(compressible, incompressible)
+        }
+    }
+
+    /**
+     * Records that [bytes] of file content were uploaded to the remote of [configuration] in [nanos].
+     */
+    fun recordThroughput(configuration: BaseSyncConfiguration, bytes: Long, nanos: Long) {
+        if (bytes < MIN_MEASURED_BYTES || nanos <= 0) {
+            return
+        }
+        val measured = bytes * 1_000_000_000.0 / nanos
+        throughputByLink.merge(linkOf(configuration), measured) { previous, current ->
+            previous + THROUGHPUT_SMOOTHING * (current - previous)
+        }
+    }
+
+    fun isFastLink(configuration: BaseSyncConfiguration) =
+        (throughputByLink[linkOf(configuration)] ?: 0.0) >= FAST_LINK_BYTES_PER_SECOND
+
+    fun isCompressible(file: File): Boolean {
+        val extension = file.extension.lowercase()
+        return when {
+            extension in compressedExtensions -> false
+            extension in textExtensions -> true
+            else -> sampledEntropy(file) <= MAX_COMPRESSIBLE_ENTROPY
+        }
+    }
+
+    /**
+     * Estimates the Shannon entropy of a file, in bits per byte, from a few samples spread over its content.
+     */
+    fun sampledEntropy(file: File): Double {
+        val counts = IntArray(256)
+        var total = 0
+        try {
+            RandomAccessFile(file, "r").use { raf ->
+                val length = raf.length()
+                val sample = ByteArray(SAMPLE_SIZE)
+                val step = ((length - SAMPLE_SIZE) / (SAMPLES_PER_FILE - 1)).coerceAtLeast(SAMPLE_SIZE.toLong())
+                var offset = 0L
+                while (offset < length && offset <= step * (SAMPLES_PER_FILE - 1)) {
+                    raf.seek(offset)
+                    val read = raf.read(sample)
+                    if (read <= 0) {
+                        break
+                    }
+                    for (i in 0 until read) {
+                        counts[sample[i].toInt() and 0xFF]++
+                    }
+                    total += read
+                    offset += step
+                }
+            }
+        } catch (e: IOException) {
+            return 0.0
+        }
+        if (total == 0) {
+            return 0.0
+        }
+        return counts.filter { it > 0 }.sumOf { count ->
+            val p = count.toDouble() / total
+            -p * ln(p) / ln(2.0)
+        }
+    }
+
+    private fun List<Pair<String, Path>>.totalSize() = sumOf { (src, _) -> File(src).length() }
+
+    private fun linkOf(configuration: BaseSyncConfiguration) = "${configuration.hostname}:${configuration.port}"
+}
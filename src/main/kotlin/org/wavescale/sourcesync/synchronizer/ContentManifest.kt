@@ -0,0 +1,170 @@
+package org.wavescale.sourcesync.synchronizer
+
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.util.io.DataExternalizer
+import com.intellij.util.io.EnumeratorStringDescriptor
+import com.intellij.util.io.IOUtil
+import com.intellij.util.io.PersistentHashMap
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+
+private const val HASH_BUFFER_SIZE = 64 * 1024
+
+/**
+ * Size, modification time and MD5 of a file, as it was when it was last uploaded.
+ */
+class ManifestEntry(val size: Long, val modificationTime: Long, val hash: ByteArray)
+
+/**
+ * Remembers the content last uploaded to a remote connection, by path relative to the remote workspace, so that files
+ * whose content did not change since can be skipped without asking the remote anything.
+ *
+ * The entries live in a [PersistentHashMap] on disk and only the ones being looked up are read, so the manifest of a
+ * very big project never has to fit on the heap. A file is hashed only when its size or modification time no longer
+ * match its entry.
+ */
+class ContentManifest private constructor(private val entries: PersistentHashMap<String, ManifestEntry>) {
+
+    /**
+     * Returns the files of the batch that have to be uploaded, along with the manifest entry to [record] once they are.
+     * The entry is `null` for files that could not be read. Files are hashed in parallel, on as many threads as there
+     * are cores.
+     *
+     * A file whose entry can't be read from the manifest is treated as changed, uploading it again is always safe.
+     */
+    fun changedFiles(files: Collection<Pair<String, Path>>): Map<Pair<String, Path>, ManifestEntry?> {
+        val changed = ConcurrentHashMap<Pair<String, Path>, ManifestEntry>()
+        val unreadable = ConcurrentHashMap.newKeySet<Pair<String, Path>>()
+        runUploadWorkers(files, Runtime.getRuntime().availableProcessors(), "Sourcesync Hashing Workers") { next ->
+            while (true) {
+                val file = next() ?: break
+                val (src, uploadLocation) = file
+                val local = File(src)
+                val key = keyOf(local, uploadLocation)
+                val previous = try {
+                    entries.get(key)
+                } catch (e: IOException) {
+                    logger.info("Could not read the upload manifest entry of $key, uploading it again", e)
+                    null
+                }
+                if (previous != null && previous.size == local.length() && previous.modificationTime == local.lastModified()) {
+                    continue
+                }
+
+                val current = try {
+                    ManifestEntry(local.length(), local.lastModified(), hash(local))
+                } catch (e: IOException) {
+                    // let the upload itself report the problem
+                    unreadable.add(file)
+                    continue
+                }
+                if (previous != null && previous.size == current.size && previous.hash.contentEquals(current.hash)) {
+                    // only touched, remember the new modification time so the file is not hashed again
+                    try {
+                        entries.put(key, current)
+                    } catch (e: IOException) {
+                        logger.debug("Could not update the upload manifest entry of $key", e)
+                    }
+                } else {
+                    changed[file] = current
+                }
+            }
+        }
+        return files.filter { changed.containsKey(it) || unreadable.contains(it) }.associateWith { changed[it] }
+    }
+
+    /**
+     * Remembers the given files as uploaded with the content described by their entries.
+     */
+    fun record(uploaded: Map<Pair<String, Path>, ManifestEntry?>) {
+        try {
+            uploaded.forEach { (file, entry) ->
+                val (src, uploadLocation) = file
+                entry?.let { entries.put(keyOf(File(src), uploadLocation), it) }
+            }
+            entries.force()
+        } catch (e: IOException) {
+            // the files that were not recorded are only uploaded again by the next sync
+            logger.info("Could not record the uploaded files in the upload manifest", e)
+        }
+    }
+
+    fun close() {
+        entries.close()
+    }
+
+    private fun keyOf(local: File, uploadLocation: Path) = uploadLocation.resolve(local.name).joinToString("/")
+
+    private fun hash(file: File): ByteArray {
+        val digest = MessageDigest.getInstance("MD5")
+        val buffer = hashBuffer.get()
+        FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+            while (true) {
+                buffer.clear()
+                if (channel.read(buffer) < 0) {
+                    break
+                }
+                digest.update(buffer.flip())
+            }
+        }
+        return digest.digest()
+    }
+
+    private object ManifestEntryExternalizer : DataExternalizer<ManifestEntry> {
+        override fun save(out: DataOutput, value: ManifestEntry) {
+            out.writeLong(value.size)
+            out.writeLong(value.modificationTime)
+            out.writeByte(value.hash.size)
+            out.write(value.hash)
+        }
+
+        override fun read(input: DataInput): ManifestEntry {
+            val size = input.readLong()
+            val modificationTime = input.readLong()
+            val hash = ByteArray(input.readUnsignedByte())
+            input.readFully(hash)
+            return ManifestEntry(size, modificationTime, hash)
+        }
+    }
+
+    companion object {
+        private val logger = logger<ContentManifest>()
+
+        private val hashBuffer = ThreadLocal.withInitial { ByteBuffer.allocate(HASH_BUFFER_SIZE) }
+
+        /**
+         * Opens the manifest stored at [file], creating it if needed. A manifest that can't be read anymore is
+         * dropped and started over, the worst that can happen is that some files are uploaded again.
+         *
+         * @return the manifest, or `null` if it could not be opened at all
+         */
+        fun open(file: Path): ContentManifest? {
+            return try {
+                ContentManifest(createMap(file))
+            } catch (e: IOException) {
+                logger.info("Could not open the upload manifest $file, starting a new one", e)
+                IOUtil.deleteAllFilesStartingWith(file.toFile())
+                try {
+                    ContentManifest(createMap(file))
+                } catch (e: IOException) {
+                    logger.warn("Could not create the upload manifest $file", e)
+                    null
+                }
+            }
+        }
+
+        private fun createMap(file: Path): PersistentHashMap<String, ManifestEntry> {
+            Files.createDirectories(file.parent)
+            return PersistentHashMap(file, EnumeratorStringDescriptor.INSTANCE, ManifestEntryExternalizer)
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.wavescale.sourcesync.synchronizer
+
+import java.io.DataOutputStream
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+
+private const val ADLER_MODULUS = 65521
+private const val MAX_LITERAL_CHUNK = 64 * 1024
+
+internal const val DELTA_OP_BLOCK = 'B'.code
+internal const val DELTA_OP_LITERAL = 'L'.code
+internal const val DELTA_OP_END = 'E'.code
+
+/**
+ * Adler-32 and MD5 signatures of every full block of the remote copy of a file, as computed by the remote delta
+ * helper.
+ */
+internal class BlockSignatures(val blockSize: Int, private val weak: IntArray, private val strong: Array<ByteArray>) {
+    private val blocksByWeak = HashMap<Int, MutableList<Int>>(weak.size * 2).apply {
+        weak.forEachIndexed { index, checksum -> getOrPut(checksum) { mutableListOf() }.add(index) }
+    }
+
+    val blockCount get() = weak.size
+
+    fun candidates(weakChecksum: Int): List<Int>? = blocksByWeak[weakChecksum]
+
+    fun strongChecksum(block: Int) = strong[block]
+}
+
+/**
+ * Computes the difference between a local file and the remote copy described by its [BlockSignatures], the same way
+ * rsync does: a rolling Adler-32 checksum is slid byte by byte over the local file, and every window whose checksum
+ * matches a remote block is confirmed with MD5 and sent as a reference to that block. Everything else is sent as
+ * literal data.
+ *
+ * The delta is written as a sequence of operations: `B` followed by a block index, `L` followed by a length and the
+ * literal bytes, and a final `E` written by the caller.
+ */
+internal object DeltaEncoder {
+
+    /**
+     * Writes the delta of [content] against [signatures] into [out].
+     *
+     * @param onProgress called from time to time with the number of local bytes processed so far
+     * @return the number of literal bytes written
+     */
+    fun encode(content: ByteBuffer, signatures: BlockSignatures, out: DataOutputStream, onProgress: (Long) -> Unit = {}): Long {
+        val blockSize = signatures.blockSize
+        val size = content.limit()
+        val md5 = MessageDigest.getInstance("MD5")
+        val literal = ByteArray(MAX_LITERAL_CHUNK)
+        var literalBytes = 0L
+        var literalStart = 0
+        var pos = 0
+        var a = 0
+        var b = 0
+        var rolling = false
+
+        fun flushLiteral(end: Int) {
+            var start = literalStart
+            while (start < end) {
+                val len = minOf(MAX_LITERAL_CHUNK, end - start)
+                content.get(start, literal, 0, len)
+                out.writeByte(DELTA_OP_LITERAL)
+                out.writeInt(len)
+                out.write(literal, 0, len)
+                literalBytes += len
+                start += len
+            }
+        }
+
+        while (pos + blockSize <= size) {
+            if (!rolling) {
+                a = 1
+                b = 0
+                for (i in pos until pos + blockSize) {
+                    a = (a + content.unsigned(i)) % ADLER_MODULUS
+                    b = (b + a) % ADLER_MODULUS
+                }
+                rolling = true
+            }
+
+            val match = signatures.candidates((b shl 16) or a)?.firstOrNull { block ->
+                md5.update(content.slice(pos, blockSize))
+                md5.digest().contentEquals(signatures.strongChecksum(block))
+            }
+            if (match != null) {
+                flushLiteral(pos)
+                out.writeByte(DELTA_OP_BLOCK)
+                out.writeLong(match.toLong())
+                pos += blockSize
+                literalStart = pos
+                rolling = false
+                onProgress(pos.toLong())
+                continue
+            }
+
+            if (pos + blockSize < size) {
+                val outgoing = content.unsigned(pos)
+                val incoming = content.unsigned(pos + blockSize)
+                a = Math.floorMod(a - outgoing + incoming, ADLER_MODULUS)
+                b = Math.floorMod(b - blockSize * outgoing + a - 1, ADLER_MODULUS)
+            }
+            pos++
+            if (pos and 0xFFFFF == 0) {
+                onProgress(pos.toLong())
+            }
+        }
+
+        flushLiteral(size)
+        onProgress(size.toLong())
+        return literalBytes
+    }
+
+    private fun ByteBuffer.unsigned(index: Int) = this.get(index).toInt() and 0xFF
+}
@@ -0,0 +1,202 @@
+package org.wavescale.sourcesync.synchronizer
+
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.ProgressIndicator
+import com.jcraft.jsch.ChannelExec
+import com.jcraft.jsch.Session
+import java.io.BufferedOutputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.nio.channels.FileChannel
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+import java.util.Base64
+import kotlin.math.sqrt
+import org.wavescale.sourcesync.configurations.BaseSyncConfiguration
+
+private const val DELTA_MIN_FILE_SIZE = 8L * 1024 * 1024
+private const val MIN_BLOCK_SIZE = 2 * 1024
+private const val MAX_BLOCK_SIZE = 64 * 1024
+private const val STRONG_CHECKSUM_LENGTH = 16
+private const val HELPER_SCRIPT = "/delta/sourcesync_delta.py"
+private const val CHANNEL_CLOSE_POLL_MILLIS = 20L
+
+/**
+ * Uploads a modified file by sending only the parts that differ from the copy already on the remote, rsync style.
+ *
+ * The remote side is a small Python 3 helper, sent inline with every command so nothing has to be installed on the
+ * remote. It first computes the block signatures of the remote copy, then rebuilds the file from the delta into a
+ * temporary file that replaces the original only after its MD5 matches the local file.
+ *
+ * Every step is best effort: when the helper can't run, the remote copy is missing or anything goes wrong, [upload]
+ * returns `null` and the caller is expected to fall back to a full upload. A canceled sync is the exception, it stops
+ * the transfer with a [ProcessCanceledException][com.intellij.openapi.progress.ProcessCanceledException] and the remote
+ * copy is left untouched.
+ *
+ * Whether python3 is available on the remote is probed with the first file big enough for a delta, unless it is
+ * already known from [knownPythonAvailability]. The result is kept in [pythonAvailability] for the next uploaders.
+ */
+internal class DeltaUploader(
+    private val session: Session,
+    private val configuration: BaseSyncConfiguration,
+    private val limiter: BandwidthLimiter?,
+    private val cancellation: TransferCancellation,
+    private val knownPythonAvailability: Boolean? = null
+) {
+
+    private val pythonCheck = lazy { knownPythonAvailability ?: checkPython() }
+
+    /**
+     * Whether python3 is available on the remote, or `null` if no file needed to know yet.
+     */
+    val pythonAvailability: Boolean?
+        get() = if (pythonCheck.isInitialized()) pythonCheck.value else knownPythonAvailability
+
+    /**
+     * Tries to bring [remoteFile] up to date with [file] by sending a delta.
+     *
+     * @param progress where the bytes of [file] are reported as they are encoded
+     * @return the size of the delta sent, literal data and block references, if the remote file was replaced, or
+     * `null` if a full upload is still needed
+     */
+    fun upload(file: File, remoteFile: String, indicator: ProgressIndicator, progress: BatchProgress.FileProgress): Long? {
+        val size = file.length()
+        if (size < DELTA_MIN_FILE_SIZE || size > Int.MAX_VALUE || !pythonCheck.value) {
+            return null
+        }
+        return try {
+            val blockSize = blockSize(size)
+            val signatures = fetchSignatures(remoteFile, blockSize) ?: return null
+            sendDelta(file, remoteFile, signatures, indicator, progress)
+        } catch (e: Exception) {
+            cancellation.rethrowIfCanceled(e)
+            logger.info("Delta transfer of ${file.name} to ${configuration.hostname} failed, uploading the whole file", e)
+            null
+        }
+    }
+
+    private fun fetchSignatures(remoteFile: String, blockSize: Int): BlockSignatures? {
+        val channel = session.openChannel("exec") as ChannelExec
+        cancellation.track(channel)
+        try {
+            channel.setCommand(helperCommand("sig", remoteFile.shellQuoted(), blockSize.toString()))
+            val input = DataInputStream(channel.inputStream.buffered())
+            channel.connect()
+
+            val remoteSize = input.readLong()
+            if (remoteSize < 0) {
+                return null
+            }
+            val blocks = (remoteSize / blockSize).toInt()
+            val weak = IntArray(blocks)
+            val strong = Array(blocks) { ByteArray(STRONG_CHECKSUM_LENGTH) }
+            for (i in 0 until blocks) {
+                weak[i] = input.readInt()
+                input.readFully(strong[i])
+            }
+            return BlockSignatures(blockSize, weak, strong)
+        } catch (e: EOFException) {
+            logger.info("Could not read the block signatures of $remoteFile from ${configuration.hostname}", e)
+            return null
+        } finally {
+            cancellation.untrack(channel)
+            channel.disconnect()
+        }
+    }
+
+    private fun sendDelta(
+        file: File,
+        remoteFile: String,
+        signatures: BlockSignatures,
+        indicator: ProgressIndicator,
+        progress: BatchProgress.FileProgress
+    ): Long? {
+        val mtime = if (configuration.preserveTimestamps) file.lastModified() / 1000 else -1
+        val stderr = ByteArrayOutputStream()
+        val channel = session.openChannel("exec") as ChannelExec
+        cancellation.track(channel)
+        try {
+            channel.setCommand(helperCommand("patch", remoteFile.shellQuoted(), signatures.blockSize.toString(), mtime.toString()))
+            channel.setErrStream(stderr, true)
+            val out = DataOutputStream(BufferedOutputStream(channel.outputStream.throttled(limiter), MAX_BLOCK_SIZE))
+            channel.connect()
+
+            indicator.text = "Uploading...[" + file.name + "]"
+            val literalBytes = FileChannel.open(file.toPath(), StandardOpenOption.READ).use { fileChannel ->
+                val content = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size())
+                var reported = 0L
+                val literal = DeltaEncoder.encode(content, signatures, out) {
+                    cancellation.checkCanceled()
+                    progress.add(it - reported)
+                    reported = it
+                }
+
+                out.writeByte(DELTA_OP_END)
+                out.write(MessageDigest.getInstance("MD5").apply { update(content.rewind()) }.digest())
+                literal
+            }
+            out.close()
+
+            waitForClose(channel)
+            if (channel.exitStatus != 0) {
+                logger.info("Delta helper exited with status ${channel.exitStatus} for $remoteFile: ${stderr.toString(Charsets.UTF_8).trim()}")
+                return null
+            }
+            logger.debug("Sent $literalBytes literal bytes in a delta of ${out.size()} bytes out of ${file.length()} for ${file.name}")
+            return out.size().toLong()
+        } finally {
+            cancellation.untrack(channel)
+            channel.disconnect()
+        }
+    }
+
+    private fun checkPython(): Boolean {
+        return try {
+            val channel = session.openChannel("exec") as ChannelExec
+            try {
+                channel.setCommand("python3 --version")
+                channel.inputStream.use { inputStream ->
+                    channel.connect()
+                    inputStream.readAllBytes()
+                }
+                waitForClose(channel)
+                channel.exitStatus == 0
+            } finally {
+                channel.disconnect()
+            }
+        } catch (e: Exception) {
+            // a canceled probe says nothing about the remote, it must not be remembered
+            cancellation.rethrowIfCanceled(e)
+            logger.info("Could not check if python3 is available on ${configuration.hostname}", e)
+            false
+        }
+    }
+
+    private fun helperCommand(vararg args: String) =
+        "python3 -c \"import base64;exec(base64.b64decode('$encodedHelper'))\" " + args.joinToString(" ")
+
+    private fun waitForClose(channel: ChannelExec) {
+        while (!channel.isClosed) {
+            cancellation.checkCanceled()
+            Thread.sleep(CHANNEL_CLOSE_POLL_MILLIS)
+        }
+    }
+
+    companion object {
+        private val logger = logger<DeltaUploader>()
+
+        private val encodedHelper: String by lazy {
+            val script = DeltaUploader::class.java.getResourceAsStream(HELPER_SCRIPT)!!.use { it.readAllBytes() }
+            Base64.getEncoder().encodeToString(script)
+        }
+
+        /**
+         * Roughly the square root of the file size, which is what rsync uses to balance the signature size against the
+         * amount of literal data sent around each change.
+         */
+        internal fun blockSize(size: Long) = sqrt(size.toDouble()).toInt().coerceIn(MIN_BLOCK_SIZE, MAX_BLOCK_SIZE)
+    }
+}
@@ -0,0 +1,339 @@
+package org.wavescale.sourcesync.synchronizer
+
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.concurrent.ConcurrentHashMap
+import java.util.regex.Pattern
+import org.wavescale.sourcesync.configurations.BaseSyncConfiguration
+
+private const val MAX_CACHED_MATCHERS = 32
+private const val ANY_DEPTH = "**"
+
+/**
+ * Decides which files and directories are left out of uploads, from patterns compiled once into a trie over path
+ * segments.
+ *
+ * Patterns follow the `.gitignore` syntax and are separated by spaces, commas or `;`:
+ * - `*.min.js` or `Thumbs.db` match a file or directory name at any depth
+ * - `build/` matches directories only
+ * - `/dist` or `src/generated` contain a `/`, so they match paths relative to the project base directory
+ * - a `**` segment matches any number of directories, `*`, `?` and `[a-z]` match within a single name
+ * - `!pattern` includes again what an earlier pattern excluded, the last matching pattern wins
+ *
+ * For backward compatibility a plain `.ext` matches the files whose name ends with `.ext`, like `*.ext` does. Unlike
+ * before, `.c` no longer matches `file.crt`.
+ *
+ * Most patterns are plain names, extensions or directories, which are matched with hash lookups. Only the segments
+ * with wildcards in the middle are matched with regular expressions.
+ */
+class ExclusionMatcher private constructor(private val root: Node) {
+    // when every pattern is a single name, only the last segment of a path has to be looked at
+    private val anyName: Node? = root.anyDepthChild?.takeIf { root.isLeafExcept(it) && it.hasOnlyLeafChildren() }
+
+    /**
+     * Whether the file or directory at [relativePath], relative to the project base directory and with `/` separated
+     * segments, is excluded. Only the last segment is checked against the patterns meant for directories or files,
+     * the parent directories are expected to be accepted already, as they are during a directory walk.
+     */
+    fun isExcluded(relativePath: String, isDirectory: Boolean) = matches(relativePath, isDirectory, false)
+
+    /**
+     * Same as [isExcluded], but a path is also excluded when one of its parent directories is.
+     */
+    fun isExcludedWithParents(relativePath: String, isDirectory: Boolean) = matches(relativePath, isDirectory, true)
+
+    private fun matches(relativePath: String, isDirectory: Boolean, checkParents: Boolean): Boolean {
+        if (anyName != null && !checkParents) {
+            val states = ArrayList<Node>(4)
+            anyName.step(relativePath.substring(relativePath.lastIndexOf('/') + 1), states)
+            return decide(states, isDirectory)
+        }
+
+        var states = ArrayList<Node>(4)
+        root.addClosureTo(states)
+        var next = ArrayList<Node>(4)
+        var start = 0
+        while (start <= relativePath.length) {
+            var end = relativePath.indexOf('/', start)
+            if (end < 0) {
+                end = relativePath.length
+            }
+            if (end == start) {
+                // empty segment, like the one of a leading, trailing or doubled separator
+                start = end + 1
+                continue
+            }
+            val segment = relativePath.substring(start, end)
+            val isLast = end == relativePath.length
+            next.clear()
+            for (state in states) {
+                state.step(segment, next)
+            }
+            if (next.isEmpty()) {
+                return false
+            }
+            if (checkParents && !isLast && decide(next, true)) {
+                return true
+            }
+            val previous = states
+            states = next
+            next = previous
+            start = end + 1
+        }
+        return decide(states, isDirectory)
+    }
+
+    /**
+     * Picks the last pattern that matches among the [states] reached by the whole path.
+     */
+    private fun decide(states: List<Node>, isDirectory: Boolean): Boolean {
+        var decisive: Rule? = null
+        for (state in states) {
+            for (rule in state.rules) {
+                if (rule.appliesTo(isDirectory) && (decisive == null || rule.priority > decisive.priority)) {
+                    decisive = rule
+                }
+            }
+        }
+        return decisive != null && !decisive.negated
+    }
+
+    private enum class Target { ANY, FILE, DIRECTORY }
+
+    private class Rule(val priority: Int, val negated: Boolean, val target: Target) {
+        fun appliesTo(isDirectory: Boolean) = when (target) {
+            Target.ANY -> true
+            Target.FILE -> !isDirectory
+            Target.DIRECTORY -> isDirectory
+        }
+    }
+
+    /**
+     * A node of the pattern trie, reached after matching one segment of a pattern. A node reached through `**`
+     * matches any number of segments by staying where it is.
+     */
+    private class Node(val anyDepth: Boolean = false) {
+        val literals = HashMap<String, Node>()
+        val suffixes = HashMap<String, Node>()
+        var suffixLengths = IntArray(0)
+        val globs = LinkedHashMap<String, Pair<Pattern, Node>>()
+        var anyDepthChild: Node? = null
+        val rules = ArrayList<Rule>(1)
+
+        fun addClosureTo(states: MutableList<Node>) {
+            if (states.none { it === this }) {
+                states.add(this)
+            }
+            anyDepthChild?.addClosureTo(states)
+        }
+
+        fun step(segment: String, next: MutableList<Node>) {
+            if (anyDepth) {
+                addClosureTo(next)
+            }
+            literals[segment]?.addClosureTo(next)
+            for (length in suffixLengths) {
+                if (length <= segment.length) {
+                    suffixes[segment.substring(segment.length - length)]?.addClosureTo(next)
+                }
+            }
+            for ((pattern, node) in globs.values) {
+                if (pattern.matcher(segment).matches()) {
+                    node.addClosureTo(next)
+                }
+            }
+        }
+
+        fun isLeafExcept(child: Node? = null) = literals.isEmpty() && suffixes.isEmpty() && globs.isEmpty() &&
+                anyDepthChild === child
+
+        fun hasOnlyLeafChildren() = anyDepthChild == null &&
+                literals.values.all { it.isLeafExcept() } &&
+                suffixes.values.all { it.isLeafExcept() } &&
+                globs.values.all { (_, node) -> node.isLeafExcept() }
+
+        fun child(segment: String): Node {
+            if (segment == ANY_DEPTH) {
+                return anyDepthChild ?: Node(anyDepth = true).also { anyDepthChild = it }
+            }
+            if (!segment.hasWildcards()) {
+                return literals.getOrPut(segment) { Node() }
+            }
+            val suffix = segment.substring(1)
+            if (segment[0] == '*' && !suffix.hasWildcards()) {
+                return suffixes.getOrPut(suffix) {
+                    suffixLengths = (suffixLengths + suffix.length).distinct().toIntArray()
+                    Node()
+                }
+            }
+            return globs.getOrPut(segment) { Pair(globToPattern(segment), Node()) }.second
+        }
+    }
+
+    companion object {
+        private val cache = ConcurrentHashMap<CacheKey, ExclusionMatcher>()
+
+        /**
+         * Compiles the [patterns] of a configuration, separated by spaces, commas or `;`, on top of the lines of a
+         * `.gitignore` file. The configured patterns come last, so they can override the `.gitignore` ones.
+         */
+        fun compile(patterns: String, gitignoreLines: List<String> = emptyList()): ExclusionMatcher {
+            val root = Node()
+            var priority = 0
+            for (line in gitignoreLines) {
+                if (root.add(line.trimEnd(), priority, false)) {
+                    priority++
+                }
+            }
+            for (token in patterns.split(' ', ',', ';', '\t', '\n')) {
+                if (root.add(token.trim(), priority, true)) {
+                    priority++
+                }
+            }
+            return ExclusionMatcher(root)
+        }
+
+        /**
+         * Returns the compiled [patterns], along with the ones of [gitignore] when given. Matchers are cached until
+         * the patterns or the `.gitignore` file change.
+         */
+        fun of(patterns: String, gitignore: Path?): ExclusionMatcher {
+            val gitignoreModified = gitignore?.let { modificationTimeOf(it) }
+            val key = CacheKey(patterns, gitignore, gitignoreModified)
+            cache[key]?.let { return it }
+            if (cache.size >= MAX_CACHED_MATCHERS) {
+                cache.clear()
+            }
+            return cache.computeIfAbsent(key) {
+                val gitignoreLines = gitignore?.takeIf { gitignoreModified != null }?.let { readLines(it) }
+                compile(patterns, gitignoreLines ?: emptyList())
+            }
+        }
+
+        /**
+         * Adds a single pattern to the trie.
+         *
+         * @return `false` for blank lines and comments
+         */
+        private fun Node.add(pattern: String, priority: Int, fromConfiguration: Boolean): Boolean {
+            var text = pattern
+            if (text.isEmpty() || text.startsWith("#")) {
+                return false
+            }
+            val negated = text.startsWith("!")
+            if (negated) {
+                text = text.substring(1)
+            } else if (text.startsWith("\\!") || text.startsWith("\\#")) {
+                text = text.substring(1)
+            }
+
+            var target = Target.ANY
+            if (text.endsWith("/")) {
+                target = Target.DIRECTORY
+                text = text.trimEnd('/')
+            } else if (fromConfiguration && text.startsWith(".") && '/' !in text && !text.hasWildcards()) {
+                // an extension, as the exclusions were originally written
+                target = Target.FILE
+                text = "*$text"
+            }
+            if (text.isEmpty()) {
+                return false
+            }
+
+            val anchored = '/' in text
+            val segments = text.split('/').filter { it.isNotEmpty() }.toMutableList()
+            if (!anchored) {
+                segments.add(0, ANY_DEPTH)
+            }
+            if (segments.last() == ANY_DEPTH) {
+                // "dir/**" matches what is inside the directory, not the directory itself
+                segments.add(segments.size - 1, "*")
+            }
+
+            var node = this
+            var previous: String? = null
+            for (segment in segments) {
+                if (segment == ANY_DEPTH && previous == ANY_DEPTH) {
+                    continue
+                }
+                node = node.child(segment)
+                previous = segment
+            }
+            node.rules.add(Rule(priority, negated, target))
+            return true
+        }
+
+        private fun String.hasWildcards() = any { it == '*' || it == '?' || it == '[' || it == '\\' }
+
+        private fun globToPattern(glob: String): Pattern {
+            val regex = StringBuilder()
+            var i = 0
+            while (i < glob.length) {
+                when (val c = glob[i]) {
+                    '*' -> regex.append(".*")
+                    '?' -> regex.append('.')
+                    '\\' -> {
+                        if (i + 1 < glob.length) {
+                            i++
+                            regex.append(Pattern.quote(glob[i].toString()))
+                        }
+                    }
+
+                    '[' -> {
+                        val close = glob.indexOf(']', i + 2)
+                        if (close < 0) {
+                            regex.append(Pattern.quote("["))
+                        } else {
+                            val negated = glob[i + 1] == '!' || glob[i + 1] == '^'
+                            val body = glob.substring(if (negated) i + 2 else i + 1, close)
+                            regex.append('[')
+                            if (negated) {
+                                regex.append('^')
+                            }
+                            regex.append(body.replace("\\", "\\\\").replace("[", "\\[").replace("&&", "\\&\\&"))
+                            regex.append(']')
+                            i = close
+                        }
+                    }
+
+                    else -> regex.append(Pattern.quote(c.toString()))
+                }
+                i++
+            }
+            return Pattern.compile(regex.toString())
+        }
+
+        private fun modificationTimeOf(file: Path): Long? = try {
+            Files.getLastModifiedTime(file).toMillis()
+        } catch (e: IOException) {
+            null
+        }
+
+        private fun readLines(file: Path): List<String> = try {
+            Files.readAllLines(file)
+        } catch (e: IOException) {
+            emptyList()
+        }
+    }
+
+    private data class CacheKey(val patterns: String, val gitignore: Path?, val gitignoreModified: Long?)
+}
+
+/**
+ * Returns the exclusions of this configuration for a project based in [projectBase], including the project's root
+ * `.gitignore` when [BaseSyncConfiguration.useGitignore] is set.
+ */
+fun BaseSyncConfiguration.exclusionMatcher(projectBase: Path): ExclusionMatcher =
+    ExclusionMatcher.of(excludedFiles, if (useGitignore) projectBase.resolve(".gitignore") else null)
+
+/**
+ * Returns [path] relative to [projectBase] with `/` separated segments, as [ExclusionMatcher] expects it. Paths
+ * outside the project are reduced to their name, so only the patterns that are not anchored apply to them.
+ */
+fun relativeExclusionPath(path: Path, projectBase: Path): String {
+    if (!path.startsWith(projectBase)) {
+        return path.fileName?.toString() ?: ""
+    }
+    return projectBase.relativize(path).joinToString("/")
+}
@@ -0,0 +1,93 @@
+package org.wavescale.sourcesync.synchronizer
+
+import java.io.OutputStream
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+
+private const val MIN_BUFFER_SIZE = 16 * 1024
+private const val MAX_BUFFER_SIZE = 1024 * 1024
+private const val FAST_WRITE_NANOS = 10_000_000L
+private const val SLOW_WRITE_NANOS = 200_000_000L
+
+/**
+ * Copies file contents into the output stream of a channel, for the stream based protocols.
+ *
+ * Files are read through a [FileChannel] straight into a buffer that is reused by all the files copied on the same
+ * thread. The buffer grows while the link swallows full buffers quickly and shrinks when a single write takes long,
+ * so fast links get large writes while progress and cancellation stay responsive on slow ones.
+ */
+internal object FileContentCopier {
+    private val buffers = ThreadLocal.withInitial { AdaptiveBuffer() }
+
+    /**
+     * Copies exactly [size] bytes of [file] into [out]. If the file shrank since [size] was computed, the missing bytes
+     * are sent as zeros so that the remote side, which was already told the size, does not wait forever.
+     *
+     * @param onBytesWritten called after every chunk written to [out], with the size of the chunk
+     * @return the number of bytes actually read from [file]
+     */
+    fun copy(file: Path, size: Long, out: OutputStream, onBytesWritten: (Int) -> Unit = {}): Long {
+        val buffer = buffers.get()
+        var copied = 0L
+        FileChannel.open(file, StandardOpenOption.READ).use { channel ->
+            while (copied < size) {
+                val chunk = buffer.next(size - copied)
+                val len = channel.read(chunk)
+                if (len <= 0) break
+                buffer.write(out, len)
+                copied += len
+                onBytesWritten(len)
+            }
+        }
+
+        var padding = size - copied
+        while (padding > 0) {
+            val len = buffer.zeros(padding)
+            buffer.write(out, len)
+            padding -= len
+            onBytesWritten(len)
+        }
+        return copied
+    }
+
+    private class AdaptiveBuffer {
+        private var bytes = ByteArray(MIN_BUFFER_SIZE * 4)
+        private var byteBuffer: ByteBuffer = ByteBuffer.wrap(bytes)
+
+        /**
+         * Returns the buffer ready to receive at most [remaining] bytes.
+         */
+        fun next(remaining: Long): ByteBuffer {
+            byteBuffer.clear()
+            byteBuffer.limit(minOf(bytes.size.toLong(), remaining).toInt())
+            return byteBuffer
+        }
+
+        fun zeros(remaining: Long): Int {
+            val len = minOf(bytes.size.toLong(), remaining).toInt()
+            bytes.fill(0, 0, len)
+            return len
+        }
+
+        /**
+         * Writes the first [len] bytes of the buffer and adapts the buffer size to the time the write took.
+         */
+        fun write(out: OutputStream, len: Int) {
+            val start = System.nanoTime()
+            out.write(bytes, 0, len)
+            val elapsed = System.nanoTime() - start
+            if (len == bytes.size && elapsed < FAST_WRITE_NANOS && bytes.size < MAX_BUFFER_SIZE) {
+                resize(bytes.size * 2)
+            } else if (elapsed > SLOW_WRITE_NANOS && bytes.size > MIN_BUFFER_SIZE) {
+                resize(bytes.size / 2)
+            }
+        }
+
+        private fun resize(size: Int) {
+            bytes = ByteArray(size)
+            byteBuffer = ByteBuffer.wrap(bytes)
+        }
+    }
+}
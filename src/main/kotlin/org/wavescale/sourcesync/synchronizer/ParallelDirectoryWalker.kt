@@ -0,0 +1,129 @@
+package org.wavescale.sourcesync.synchronizer
+
+import com.intellij.openapi.diagnostic.logger
+import java.io.IOException
+import java.nio.file.DirectoryIteratorException
+import java.nio.file.Files
+import java.nio.file.LinkOption
+import java.nio.file.Path
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RecursiveAction
+import java.util.concurrent.TimeUnit
+
+private const val DEFAULT_CHUNK_SIZE = 256
+private const val CHUNK_FILL_WAIT_MILLIS = 20L
+private val END_OF_WALK: Path = Path.of("")
+
+/**
+ * Walks directory trees on a fork-join pool, one task per directory, and hands the files it finds out in chunks while
+ * the walk is still going on. This lets the upload of the first files start long before a big tree is fully walked.
+ *
+ * Every directory and file is checked with [accept] as soon as it is found, so a rejected directory is never listed
+ * at all. Symbolic links to directories are not followed.
+ */
+internal class ParallelDirectoryWalker(
+    private val accept: (path: Path, isDirectory: Boolean) -> Boolean,
+    private val chunkSize: Int = DEFAULT_CHUNK_SIZE
+) {
+
+    /**
+     * Starts walking [roots] in the background. The returned chunks must be closed once they are no longer needed, to
+     * stop the walk early.
+     */
+    fun walk(roots: Collection<Path>): FileChunks {
+        val found = LinkedBlockingQueue<Path>()
+        val pool = ForkJoinPool(Runtime.getRuntime().availableProcessors())
+        pool.execute(object : RecursiveAction() {
+            override fun compute() {
+                try {
+                    invokeAll(roots.map { DirectoryTask(it, found) })
+                } finally {
+                    found.put(END_OF_WALK)
+                }
+            }
+        })
+        return FileChunks(found, pool)
+    }
+
+    private inner class DirectoryTask(private val dir: Path, private val found: LinkedBlockingQueue<Path>) : RecursiveAction() {
+        override fun compute() {
+            val subdirectories = mutableListOf<DirectoryTask>()
+            try {
+                Files.newDirectoryStream(dir).use { entries ->
+                    for (entry in entries) {
+                        val attributes = try {
+                            Files.readAttributes(entry, BasicFileAttributes::class.java, LinkOption.NOFOLLOW_LINKS)
+                        } catch (e: IOException) {
+                            // removed while we were walking
+                            continue
+                        }
+                        when {
+                            attributes.isDirectory -> if (accept(entry, true)) subdirectories.add(DirectoryTask(entry, found))
+                            attributes.isRegularFile -> if (accept(entry, false)) found.put(entry)
+                            attributes.isSymbolicLink -> if (Files.isRegularFile(entry) && accept(entry, false)) found.put(entry)
+                        }
+                    }
+                }
+            } catch (e: IOException) {
+                logger.info("Could not list directory $dir, skipping it", e)
+            } catch (e: DirectoryIteratorException) {
+                logger.info("Could not list directory $dir, skipping it", e)
+            }
+            invokeAll(subdirectories)
+        }
+    }
+
+    /**
+     * The files found by a walk, in chunks of at most `chunkSize` files. [hasNext] blocks until files are available or
+     * the walk is over.
+     */
+    inner class FileChunks internal constructor(
+        private val found: LinkedBlockingQueue<Path>,
+        private val pool: ForkJoinPool
+    ) : Iterator<List<Path>>, AutoCloseable {
+        private var next: List<Path>? = null
+        private var walkEnded = false
+
+        override fun hasNext(): Boolean {
+            if (next == null && !walkEnded) {
+                next = takeChunk()
+            }
+            return next != null
+        }
+
+        override fun next(): List<Path> {
+            if (!hasNext()) {
+                throw NoSuchElementException()
+            }
+            return next!!.also { next = null }
+        }
+
+        override fun close() {
+            pool.shutdownNow()
+        }
+
+        private fun takeChunk(): List<Path>? {
+            val chunk = ArrayList<Path>(chunkSize)
+            chunk.add(found.take())
+            // give the walkers a moment to fill the chunk, unless it is full already
+            found.drainTo(chunk, chunkSize - chunk.size)
+            if (chunk.size < chunkSize && chunk.last() !== END_OF_WALK) {
+                found.poll(CHUNK_FILL_WAIT_MILLIS, TimeUnit.MILLISECONDS)?.let { chunk.add(it) }
+                found.drainTo(chunk, chunkSize - chunk.size)
+            }
+
+            if (chunk.last() === END_OF_WALK) {
+                walkEnded = true
+                pool.shutdown()
+                chunk.removeAt(chunk.size - 1)
+            }
+            return chunk.ifEmpty { null }
+        }
+    }
+
+    companion object {
+        private val logger = logger<ParallelDirectoryWalker>()
+    }
+}
@@ -0,0 +1,32 @@
+package org.wavescale.sourcesync.synchronizer
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Absolute remote directory paths that are known to exist. A cache is shared by all the files uploaded during a sync
+ * session so that the same directories are not checked or created over and over again.
+ *
+ * The cache is only a hint: whenever an operation on a cached directory fails, the directory and everything below it
+ * should be [invalidated][invalidate].
+ */
+class RemoteDirectoryCache {
+    private val knownDirs = ConcurrentHashMap.newKeySet<String>()
+
+    fun contains(dirPath: String) = knownDirs.contains(dirPath)
+
+    fun add(dirPath: String) {
+        knownDirs.add(dirPath)
+    }
+
+    /**
+     * Forgets about [dirPath] and all of its subdirectories.
+     */
+    fun invalidate(dirPath: String) {
+        val prefix = "${dirPath.trimEnd('/')}/"
+        knownDirs.removeIf { it == dirPath || it.startsWith(prefix) }
+    }
+
+    fun clear() {
+        knownDirs.clear()
+    }
+}
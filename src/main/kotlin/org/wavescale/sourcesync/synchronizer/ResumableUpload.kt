@@ -0,0 +1,141 @@
+package org.wavescale.sourcesync.synchronizer
+
+import com.intellij.openapi.diagnostic.logger
+import com.jcraft.jsch.ChannelSftp
+import com.jcraft.jsch.SftpException
+import com.jcraft.jsch.SftpProgressMonitor
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+
+private const val MIN_RESUMABLE_SIZE = 16L * 1024 * 1024
+private const val TAIL_CHECK_SIZE = 64 * 1024
+private const val PARTIAL_SUFFIX = ".sourcesync-part"
+private const val PERMISSION_BITS = 0b111_111_111_111
+
+private val logger = logger<SFTPFileSynchronizer>()
+
+/**
+ * Whether [file] is big enough to be uploaded with [putResumable].
+ */
+internal fun isResumable(file: File) = file.length() >= MIN_RESUMABLE_SIZE
+
+/**
+ * Uploads [file] to a partial file next to [remoteFile] and renames it into place once it is complete, so an upload
+ * that is interrupted never leaves a truncated [remoteFile] behind and can continue where it stopped.
+ *
+ * The partial file is named after the size and modification time of [file], so only an upload of the same version of
+ * the file is resumed. Before resuming, the last block of the partial file is compared with the same block of [file];
+ * if they differ the upload starts over.
+ *
+ * The partial file is created by the server, so before the rename it is given the permission bits of the [remoteFile]
+ * it replaces; its owner is the connection's user, whoever owned [remoteFile]. On servers that support the
+ * `posix-rename@openssh.com` extension, like OpenSSH does, the rename replaces [remoteFile] atomically. On the others
+ * [remoteFile] is removed first, so for a moment there is no file at all, and its mode is applied again afterwards.
+ *
+ * The bytes sent are limited by [limiter], the bytes already on the remote are not counted. An upload stopped by
+ * [cancellation] keeps its partial file, for the next upload to resume.
+ *
+ * @return the number of bytes sent, the length of [file] minus the bytes that were already on the remote
+ */
+@Throws(SftpException::class, IOException::class)
+internal fun ChannelSftp.putResumable(
+    file: File,
+    remoteFile: String,
+    monitor: SftpProgressMonitor,
+    limiter: BandwidthLimiter?,
+    cancellation: TransferCancellation
+): Long {
+    val remoteDir = remoteFile.substringBeforeLast('/')
+    val partialName = ".${file.name}.${file.length()}-${file.lastModified()}$PARTIAL_SUFFIX"
+    val partialFile = "$remoteDir/$partialName"
+    removeStalePartialFiles(file, remoteDir, partialName)
+
+    val offset = verifiedOffset(file, partialFile)
+    if (offset > 0) {
+        logger.info("Resuming the upload of ${file.name} at $offset of ${file.length()} bytes")
+        // the channel skips the bytes already on the remote without reporting them
+        monitor.count(offset)
+    }
+    FileInputStream(file).throttled(limiter).use {
+        put(it, partialFile, monitor, if (offset > 0) ChannelSftp.RESUME else ChannelSftp.OVERWRITE)
+    }
+    // the channel stops sending without failing when the monitor asks it to, the partial file is not complete
+    cancellation.checkCanceled()
+    moveIntoPlace(partialFile, remoteFile)
+    return file.length() - offset
+}
+
+/**
+ * Returns how many bytes of the partial file can be kept, all of them or none.
+ */
+private fun ChannelSftp.verifiedOffset(file: File, partialFile: String): Long {
+    val partialLength = try {
+        stat(partialFile).size
+    } catch (e: SftpException) {
+        return 0
+    }
+    if (partialLength <= 0 || partialLength > file.length()) {
+        return 0
+    }
+
+    val tailStart = (partialLength - TAIL_CHECK_SIZE).coerceAtLeast(0)
+    val tailLength = (partialLength - tailStart).toInt()
+    return try {
+        val remoteTail = get(partialFile, null, tailStart).use { it.readNBytes(tailLength) }
+        val localTail = ByteArray(tailLength)
+        RandomAccessFile(file, "r").use {
+            it.seek(tailStart)
+            it.readFully(localTail)
+        }
+        if (remoteTail.contentEquals(localTail)) partialLength else 0
+    } catch (e: SftpException) {
+        0
+    } catch (e: IOException) {
+        0
+    }
+}
+
+/**
+ * Removes the partial files left behind by interrupted uploads of older versions of [file].
+ */
+private fun ChannelSftp.removeStalePartialFiles(file: File, remoteDir: String, partialName: String) {
+    if (file.name.any { it == '*' || it == '?' || it == '\\' }) {
+        // the name can't be used in a pattern
+        return
+    }
+    try {
+        ls("$remoteDir/.${file.name}.*$PARTIAL_SUFFIX")
+            .filter { it.filename != partialName && it.attrs.isReg }
+            .forEach { rm("$remoteDir/${it.filename}") }
+    } catch (e: SftpException) {
+        logger.debug("Could not look for stale partial uploads of ${file.name}", e)
+    }
+}
+
+/**
+ * Renames [partialFile] over [remoteFile]. The partial file was created with the default mode of the server, so it gets
+ * the permission bits of the [remoteFile] it replaces first, the way an upload overwriting the file in place keeps them.
+ */
+@Throws(SftpException::class)
+private fun ChannelSftp.moveIntoPlace(partialFile: String, remoteFile: String) {
+    val mode = try {
+        stat(remoteFile).permissions and PERMISSION_BITS
+    } catch (e: SftpException) {
+        // a new file keeps the default mode
+        null
+    }
+    mode?.let { chmod(it, partialFile) }
+    try {
+        rename(partialFile, remoteFile)
+    } catch (e: SftpException) {
+        // without posix-rename@openssh.com the server refuses to replace an existing file
+        if (mode == null) {
+            throw e
+        }
+        rm(remoteFile)
+        rename(partialFile, remoteFile)
+        chmod(mode, remoteFile)
+    }
+}
@@ -12,43 +12,56 @@
 package org.wavescale.sourcesync.synchronizer
 
 import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.project.Project
+import com.intellij.util.concurrency.AppExecutorUtil
 import com.jcraft.jsch.ChannelExec
 import com.jcraft.jsch.JSch
 import com.jcraft.jsch.JSchException
 import com.jcraft.jsch.Session
 import java.io.File
-import java.io.FileInputStream
 import java.io.IOException
 import java.io.InputStream
+import java.io.OutputStream
 import java.nio.file.Path
 import java.nio.file.Paths
+import java.util.concurrent.TimeUnit
 import org.wavescale.sourcesync.SourcesyncBundle
 import org.wavescale.sourcesync.api.Utils
 import org.wavescale.sourcesync.configurations.AuthenticationType
+import org.wavescale.sourcesync.configurations.CompressionPolicy
 import org.wavescale.sourcesync.configurations.ScpSyncConfiguration
 import org.wavescale.sourcesync.notifications.Notifier
+import org.wavescale.sourcesync.services.BandwidthService
+import org.wavescale.sourcesync.services.ContentManifestService
+import org.wavescale.sourcesync.services.SshSessionPool
 import org.wavescale.sourcesync.services.StatsService
-import org.wavescale.sourcesync.services.SyncStatusService
+import org.wavescale.sourcesync.services.TransferPhase
 
 class SCPFileSynchronizer(private val configuration: ScpSyncConfiguration, val project: Project) : Synchronizer {
-    private val syncStatusService = service<SyncStatusService>()
     private val statsService = service<StatsService>()
-    private val jsch: JSch = JSch()
+    private val bandwidthLimiter = service<BandwidthService>().limiterFor(configuration)
+    private val sessionPool = service<SshSessionPool>()
     private var session: Session? = null
+    // only used by the adaptive compression policy, for the files that compress well
+    private var compressedSession: Session? = null
+    // probed once, on the first batch uploaded as a tar stream
+    private var isTarAvailable: Boolean? = null
+
+    // probed once, on the first file big enough for a delta transfer
+    private var isPythonAvailable: Boolean? = null
 
     private var isConnected: Boolean = false
 
     override fun connect(): Boolean {
         return if (!isConnected) {
             try {
-                initSession()
-                session!!.connect()
+                session = sessionPool.acquire(configuration, compressByDefault) { createSession(compressByDefault) }
                 isConnected = true
                 true
             } catch (e: JSchException) {
-                syncStatusService.removeRunningSync(configuration.name)
                 Notifier.notifyError(
                     project,
                     SourcesyncBundle.message("scp.upload.fail.title"),
@@ -59,26 +72,26 @@ class SCPFileSynchronizer(private val configuration: ScpSyncConfiguration, val p
         } else true
     }
 
+    private val compressByDefault get() = configuration.compressionPolicy == CompressionPolicy.ALWAYS
+
+    /**
+     * Creates a new, not yet connected, session for the [configuration]. Only called by the [SshSessionPool] when
+     * there is no healthy pooled session to reuse.
+     */
     @Throws(JSchException::class)
-    private fun initSession() {
-        syncStatusService.addRunningSync(configuration.name)
-        session = jsch.getSession(
-            configuration.username, configuration.hostname,
-            configuration.port.toInt()
-        )
-        session!!.setConfig("StrictHostKeyChecking", "no")
+    private fun createSession(compressed: Boolean): Session {
+        val jsch = JSch()
+        val newSession = jsch.getSession(configuration.username, configuration.hostname, configuration.port.toInt())
+        newSession.setConfig("StrictHostKeyChecking", "no")
+        if (compressed) {
+            newSession.useCompression()
+        }
         if (configuration.authenticationType == AuthenticationType.KEY_PAIR) {
-            session!!.setConfig("PreferredAuthentications", "publickey")
+            newSession.setConfig("PreferredAuthentications", "publickey")
             try {
                 Utils.createFile(SSH_KNOWN_HOSTS)
             } catch (e: IOException) {
-                syncStatusService.removeRunningSync(configuration.name)
-                Notifier.notifyError(
-                    project,
-                    SourcesyncBundle.message("scp.upload.fail.title"),
-                    "Could not identify nor create the SSH known hosts file at $SSH_KNOWN_HOSTS. Reason: ${e.message}",
-                )
-                return
+                throw JSchException("Could not identify nor create the SSH known hosts file at $SSH_KNOWN_HOSTS. Reason: ${e.message}", e)
             }
             jsch.setKnownHosts(SSH_KNOWN_HOSTS)
             // add private key and passphrase if exists
@@ -88,189 +101,526 @@ class SCPFileSynchronizer(private val configuration: ScpSyncConfiguration, val p
                 jsch.addIdentity(configuration.privateKey)
             }
         } else {
-            session!!.setPassword(configuration.password)
+            newSession.setPassword(configuration.password)
         }
+        return newSession
     }
 
+    /**
+     * Hands the sessions back to the [SshSessionPool]. The underlying SSH connections stay open for the next sync.
+     */
     override fun disconnect() {
         try {
-            session?.disconnect()
+            session?.let { sessionPool.release(configuration, compressByDefault, it) }
+            compressedSession?.let { sessionPool.release(configuration, true, it) }
         } finally {
+            session = null
+            compressedSession = null
             isConnected = false
-            syncStatusService.removeRunningSync(configuration.name)
         }
     }
 
+    override fun syncFile(src: String, uploadLocation: Path, indicator: ProgressIndicator) {
+        syncFiles(listOf(Pair(src, uploadLocation)), indicator)
+    }
+
+    /**
+     * Uploads all the given files, spread over [uploadWorkers][org.wavescale.sourcesync.configurations.BaseSyncConfiguration.uploadWorkers]
+     * workers. Every worker streams its files, together with their directory structure, through a single recursive
+     * `scp -r -t` sink opened on the shared session.
+     */
+    override fun syncFiles(src: Collection<Pair<String, Path>>, indicator: ProgressIndicator) {
+        if (src.isEmpty()) {
+            return
+        }
+        syncFileChunks(listOf(src).iterator(), indicator)
+    }
+
     /**
-     * Uploads the given file to the remote target.
+     * Every chunk is uploaded as soon as it is available, while failures and the summary of all the chunks are
+     * reported once the last chunk is done.
      *
-     * @param src     a `String` representing a file path to be uploaded. This is a relative path
-     * to project base path.
-     * @param uploadLocation a `String` representing a location path on the remote target
-     * where the source will be uploaded.
+     * Canceling the [indicator] tears down the channels in use right away, and the files that were cut short are
+     * removed from the remote.
      */
-    override fun syncFile(src: String, uploadLocation: Path, indicator: ProgressIndicator) {
-        val srcAsFile = File(src)
-        var remotePath = Paths
-            .get(configuration.workspaceBasePath)
-            .resolve(uploadLocation)
-            .pathStringLike(configuration.workspaceBasePath)
-
-        var command = "scp " + (if (configuration.preserveTimestamps) "-p" else "") + " -t -C "
-        if (srcAsFile.isFile) {
-            remotePath = Paths
-                .get(remotePath)
-                .resolve(srcAsFile.name)
-                .pathStringLike(configuration.workspaceBasePath)
-            command += remotePath
+    override fun syncFileChunks(chunks: Iterator<Collection<Pair<String, Path>>>, indicator: ProgressIndicator) {
+        val report = SyncReport()
+        TransferCancellation(indicator).use { cancellation ->
+            try {
+                chunks.forEach {
+                    cancellation.checkCanceled()
+                    syncChunk(it, indicator, cancellation, report)
+                }
+            } catch (e: ProcessCanceledException) {
+                removeInterruptedFiles(cancellation.interruptedFiles())
+                throw e
+            }
+        }
+
+        report.notifyFailures(project, SourcesyncBundle.message("scp.upload.fail.title"))
+        if (configuration.skipUnchanged || configuration.contentManifest) {
+            report.notifySummary(project)
+        }
+    }
+
+    private fun syncChunk(src: Collection<Pair<String, Path>>, indicator: ProgressIndicator, cancellation: TransferCancellation, report: SyncReport) {
+        if (src.isEmpty()) {
+            return
+        }
+
+        val manifest = if (configuration.contentManifest) project.service<ContentManifestService>().manifestFor(configuration) else null
+        val manifestEntries = manifest?.let {
+            indicator.text = "Hashing files..."
+            it.changedFiles(src)
         }
+        var files = manifestEntries?.keys ?: src
+        if (configuration.skipUnchanged && files.isNotEmpty()) {
+            indicator.text = "Comparing with ${configuration.hostname}..."
+            files = filterChangedFiles(files, configuration.clockSkewTolerance, ::listRemoteDirs)
+        }
+        report.skip(src.size - files.size)
+        if (files.isNotEmpty()) {
+            uploadFiles(files, indicator, cancellation, report)
+        }
+        if (manifest != null && manifestEntries != null) {
+            // files found unchanged on the remote are up to date as well
+            val uploadedFiles = files.toSet()
+            manifest.record(manifestEntries.filterKeys { it !in uploadedFiles || report.isUploaded(it.first) })
+        }
+    }
+
+    /**
+     * With the adaptive compression policy, the files that compress well are uploaded over a compressed session and the
+     * others over the plain one. The progress covers both, as a single batch.
+     */
+    private fun uploadFiles(files: Collection<Pair<String, Path>>, indicator: ProgressIndicator, cancellation: TransferCancellation, report: SyncReport) {
+        val progress = BatchProgress(indicator, files.size, files.sumOf { (file, _) -> File(file).length() })
+        if (configuration.compressionPolicy != CompressionPolicy.ADAPTIVE) {
+            uploadFiles(files, indicator, progress, cancellation, report, session!!)
+        } else {
+            val (compressible, incompressible) = CompressionAdvisor.partition(files, configuration)
+            if (compressible.isNotEmpty()) {
+                uploadFiles(compressible, indicator, progress, cancellation, report, compressedSession() ?: session!!)
+            }
+            if (incompressible.isNotEmpty()) {
+                uploadFiles(incompressible, indicator, progress, cancellation, report, session!!)
+            }
+        }
+        progress.finish()
+    }
+
+    private fun compressedSession(): Session? {
+        compressedSession?.let { return it }
+        return try {
+            sessionPool.acquire(configuration, true) { createSession(true) }.also { compressedSession = it }
+        } catch (e: JSchException) {
+            logger.info("Could not open a compressed SSH session to ${configuration.hostname}, uploading without compression", e)
+            null
+        }
+    }
+
+    private fun uploadFiles(
+        files: Collection<Pair<String, Path>>,
+        indicator: ProgressIndicator,
+        progress: BatchProgress,
+        cancellation: TransferCancellation,
+        report: SyncReport,
+        uploadSession: Session
+    ) {
+        val started = System.nanoTime()
+        if (configuration.tarStreamUploads && files.size > 1) {
+            val tarUploader = TarStreamUploader(uploadSession, configuration, bandwidthLimiter, cancellation)
+            val tarAvailable = isTarAvailable ?: tarUploader.isTarAvailable().also { isTarAvailable = it }
+            if (tarAvailable) {
+                if (statsService.measure(configuration, TransferPhase.TRANSFER) { tarUploader.upload(files, indicator, progress, report) }) {
+                    files.forEach { (file, _) -> report.uploaded(file) }
+                    if (statsService.registerSuccessfulUploads(files.size)) {
+                        Notifier.notifyToProDueToHighNumberOfUploads(project)
+                    }
+                    val uploadedBytes = files.sumOf { (file, _) -> File(file).length() }
+                    statsService.recordFiles(configuration, files.size, uploadedBytes)
+                    CompressionAdvisor.recordThroughput(configuration, uploadedBytes, System.nanoTime() - started)
+                }
+                return
+            }
+            logger.info("tar is not available on ${configuration.hostname}, falling back to uploading files one by one")
+        }
+
+        // files of the same directory are sent one after the other, so the sink changes directories as little as possible
+        val sortedFiles = files.sortedBy { (_, uploadLocation) -> uploadLocation.joinToString("/") }
+        val deltaUploader = if (configuration.deltaTransfers) DeltaUploader(uploadSession, configuration, bandwidthLimiter, cancellation, isPythonAvailable) else null
+        runUploadWorkers(sortedFiles, configuration.uploadWorkers) { next ->
+            var sink: ScpSink? = null
+            try {
+                while (true) {
+                    cancellation.checkCanceled()
+                    val (file, uploadLocation) = next() ?: break
+                    val fileStarted = System.nanoTime()
+                    val fileProgress = progress.file(File(file).length())
+                    try {
+                        val deltaBytes = deltaUploader?.let {
+                            statsService.measure(configuration, TransferPhase.TRANSFER) {
+                                it.upload(File(file), remoteFileOf(file, uploadLocation), indicator, fileProgress)
+                            }
+                        }
+                        if (deltaBytes != null) {
+                            report.uploaded(file)
+                            registerSuccessfulUpload()
+                            statsService.recordFile(configuration, deltaBytes, System.nanoTime() - fileStarted)
+                            continue
+                        }
+                        // a delta transfer cut short by a cancellation must not fall back to a full upload
+                        cancellation.checkCanceled()
+                        val currentSink = sink ?: openSink(uploadSession, cancellation, report) ?: break
+                        sink = currentSink
+                        if (!uploadFile(currentSink, file, uploadLocation, indicator, fileProgress, cancellation, report)) {
+                            // the sink gave up, the next file gets a fresh one
+                            currentSink.close()
+                            sink = null
+                        }
+                    } finally {
+                        fileProgress.done()
+                    }
+                }
+            } finally {
+                sink?.close()
+            }
+        }
+        deltaUploader?.pythonAvailability?.let { isPythonAvailable = it }
+        val uploadedBytes = files.filter { (file, _) -> report.isUploaded(file) }.sumOf { (file, _) -> File(file).length() }
+        CompressionAdvisor.recordThroughput(configuration, uploadedBytes, System.nanoTime() - started)
+    }
+
+    /**
+     * Lists the remote directories of the given upload locations with a single `find` per [LISTED_DIRS_PER_COMMAND]
+     * directories. `find -printf` is a GNU extension, on remotes without it nothing is listed and every file is
+     * uploaded.
+     */
+    private fun listRemoteDirs(uploadLocations: Set<Path>): Map<Path, Map<String, RemoteFileInfo>> {
+        val locationsByDir = uploadLocations.associateBy { remoteDirOf(it) }
+        val listings = HashMap<Path, MutableMap<String, RemoteFileInfo>>()
+        locationsByDir.keys.chunked(LISTED_DIRS_PER_COMMAND).forEach { dirs ->
+            var channel: ChannelExec? = null
+            try {
+                channel = session!!.openChannel("exec") as ChannelExec
+                channel.setCommand(
+                    "find " + dirs.joinToString(" ") { it.shellQuoted() } + " -maxdepth 1 -type f -printf '%s %T@ %h/%f\\0' 2>/dev/null"
+                )
+                val output = channel.inputStream.use { inputStream ->
+                    channel.connect()
+                    inputStream.readAllBytes().toString(Charsets.UTF_8)
+                }
+                // every entry is "<size> <mtime with fraction> <dir>/<name>", separated by NUL as names may contain newlines
+                output.split('\u0000').filter { it.isNotEmpty() }.forEach { entry ->
+                    val (size, mtime, path) = entry.split(' ', limit = 3)
+                    val uploadLocation = locationsByDir[path.substringBeforeLast('/')] ?: return@forEach
+                    listings.getOrPut(uploadLocation) { HashMap() }[path.substringAfterLast('/')] =
+                        RemoteFileInfo(size.toLong(), mtime.toDouble().toLong())
+                }
+            } catch (e: Exception) {
+                logger.info("Could not list the remote directories on ${configuration.hostname}", e)
+            } finally {
+                channel?.disconnect()
+            }
+        }
+        return listings
+    }
+
+    /**
+     * Opens a recursive `scp` sink into the workspace base path. The `-d` flag makes the sink fail if the base path is
+     * not an existing directory, instead of silently creating it.
+     *
+     * The sink is never given `-p`, which would make it chmod every existing directory entered with a `D` directive and
+     * every existing file to the modes sent for them. Existing remote directories and files keep their mode, and the
+     * timestamps are preserved with the `T` directives sent before every file, which the sink applies either way.
+     *
+     * Compression is not asked from `scp`, whose `-C` flag has no effect on the sink side anyway. It is negotiated on
+     * the [uploadSession] itself, according to the compression policy of the connection.
+     */
+    private fun openSink(uploadSession: Session, cancellation: TransferCancellation, report: SyncReport): ScpSink? {
+        val command = "scp -r -d -t " + configuration.workspaceBasePath.shellQuoted()
+        var channel: ChannelExec? = null
         try {
-            val channel = session!!.openChannel("exec")
-            (channel as ChannelExec).setCommand(command)
+            val started = System.nanoTime()
+            channel = uploadSession.openChannel("exec") as ChannelExec
+            cancellation.track(channel)
+            channel.setCommand(command)
 
             // get I/O streams for remote scp
-            val out = channel.getOutputStream()
+            val out = channel.getOutputStream().throttled(bandwidthLimiter)
             val inputStream = channel.getInputStream()
             channel.connect()
-            if (checkAck(inputStream, this::onChannelConnectError) != 0) {
-                return
+            val ack = checkAck(inputStream, configuration.hostname, report, this::onChannelConnectError)
+            statsService.record(configuration, TransferPhase.CHANNEL_OPEN, System.nanoTime() - started)
+            if (ack != 0) {
+                cancellation.untrack(channel)
+                channel.disconnect()
+                return null
+            }
+            return ScpSink(channel, out, inputStream, cancellation)
+        } catch (e: Exception) {
+            channel?.let {
+                cancellation.untrack(it)
+                it.disconnect()
+            }
+            cancellation.rethrowIfCanceled(e)
+            report.fail(configuration.hostname, "Upload to ${configuration.hostname} failed. Reason: ${e.message}")
+            return null
+        }
+    }
+
+    /**
+     * Uploads the given file to the remote target through an open [sink].
+     *
+     * @param src     a `String` representing a file path to be uploaded. This is a relative path
+     * to project base path.
+     * @param uploadLocation a `String` representing a location path on the remote target
+     * where the source will be uploaded.
+     * @return `false` if the sink can no longer be used for other files
+     */
+    private fun uploadFile(
+        sink: ScpSink,
+        src: String,
+        uploadLocation: Path,
+        indicator: ProgressIndicator,
+        fileProgress: BatchProgress.FileProgress,
+        cancellation: TransferCancellation,
+        report: SyncReport
+    ): Boolean {
+        val started = System.nanoTime()
+        val srcAsFile = File(src)
+        val out = sink.out
+        val inputStream = sink.inputStream
+        // once the sink accepted the file, it writes it in place and a cancellation leaves it truncated
+        var contentStarted = false
+        var completed = false
+        try {
+            val directoryAck = statsService.measure(configuration, TransferPhase.DIRECTORIES) {
+                sink.enterDirectory(uploadLocation.map { it.toString() }.filter { it.isNotEmpty() }, srcAsFile.name, report)
+            }
+            when (directoryAck) {
+                ACK_OK -> Unit
+                AckError.ERROR.code -> return true
+                else -> return false
             }
-            indicator.isIndeterminate = false
             indicator.text = "Uploading...[" + srcAsFile.name + "]"
+            var command: String
             if (configuration.preserveTimestamps) {
                 command = "T " + srcAsFile.lastModified() / 1000 + " 0"
                 // The access time should be sent here,
                 // but it is not accessible with JavaAPI ;-<
                 command += " " + (srcAsFile.lastModified() / 1000) + " 0\n"
-                out.write(command.toByteArray())
-                out.flush()
-                if (checkAck(inputStream, this::onPreservingTimestampsError) != 0) {
-                    return
+                val timestampsAck = statsService.measure(configuration, TransferPhase.TIMESTAMPS) {
+                    out.write(command.toByteArray())
+                    out.flush()
+                    checkAck(inputStream, srcAsFile.name, report, this::onPreservingTimestampsError)
+                }
+                when (timestampsAck) {
+                    ACK_OK -> Unit
+                    AckError.ERROR.code -> return true
+                    else -> return false
                 }
             }
             // send "C0644 filesize filename", where filename should not include '/'
+            val transferStarted = System.nanoTime()
             val filesize = srcAsFile.length()
             command = "C0644 $filesize "
             command += Paths.get(src).fileName.toString()
             command += "\n"
             out.write(command.toByteArray())
             out.flush()
-            if (checkAck(inputStream, this::onSendingFileModesError) != 0) {
-                return
+            when (checkAck(inputStream, srcAsFile.name, report, this::onSendingFileModesError)) {
+                ACK_OK -> Unit
+                AckError.ERROR.code -> return true
+                else -> return false
             }
 
             // send content of finalSourcePath
-            val fis = FileInputStream(src)
-            var totalUploaded = 0.0
-            val buf = ByteArray(1024)
-            while (true) {
-                val len = fis.read(buf, 0, buf.size)
-                if (len <= 0) break
-                out.write(buf, 0, len) //out.flush();
-                totalUploaded += len.toDouble()
-                indicator.fraction = totalUploaded / filesize
+            contentStarted = true
+            FileContentCopier.copy(srcAsFile.toPath(), filesize, out) {
+                cancellation.checkCanceled()
+                fileProgress.add(it.toLong())
             }
-            fis.close()
             // send '\0'
-            buf[0] = 0
-            out.write(buf, 0, 1)
+            out.write(0)
             out.flush()
-            if (checkAck(inputStream, this::onSendFileContentError) != 0) {
-                return
-            }
-            out.close()
-            channel.disconnect()
-            statsService.registerSuccessfulUpload()
-            if (statsService.eligibleForDonations()) {
-                Notifier.notifyToProDueToHighNumberOfUploads(project)
+            val contentAck = checkAck(inputStream, srcAsFile.name, report, this::onSendFileContentError)
+            statsService.record(configuration, TransferPhase.TRANSFER, System.nanoTime() - transferStarted)
+            when (contentAck) {
+                ACK_OK -> Unit
+                AckError.ERROR.code -> return true
+                else -> return false
             }
+            completed = true
+            report.uploaded(src)
+            registerSuccessfulUpload()
+            statsService.recordFile(configuration, filesize, System.nanoTime() - started)
+            return true
         } catch (e: Exception) {
-            syncStatusService.removeRunningSync(configuration.name)
-            Notifier.notifyError(
-                project,
-                SourcesyncBundle.message("scp.upload.fail.title"),
-                "Upload to ${configuration.hostname} failed. Reason: ${e.message}",
-            )
+            cancellation.rethrowIfCanceled(e)
+            report.fail(srcAsFile.name, "Upload to ${configuration.hostname} failed. Reason: ${e.message}")
+            return false
+        } finally {
+            if (contentStarted && !completed && cancellation.isCanceled) {
+                cancellation.interrupted(remoteFileOf(src, uploadLocation))
+            }
         }
     }
 
-    private fun onChannelConnectError(errorCode: AckError, reason: String) {
-        when (errorCode) {
-            AckError.ERROR -> Notifier.notifyError(
-                project,
-                SourcesyncBundle.message("scp.upload.fail.title"),
-                SourcesyncBundle.message("scp.upload.fail.channel.connect.error.message", configuration.hostname, reason)
-            )
-
-            AckError.FATAL_ERROR -> Notifier.notifyError(
-                project,
-                SourcesyncBundle.message("scp.upload.fail.title"),
-                SourcesyncBundle.message("scp.upload.fail.channel.connect.fatal.error.message", configuration.hostname, reason)
-            )
-
-            AckError.UNKNOWN -> Unit
+    /**
+     * Removes, in the background, the remote files that a canceled sync left partially written.
+     */
+    private fun removeInterruptedFiles(remoteFiles: List<String>) {
+        val cleanupSession = session ?: return
+        if (remoteFiles.isEmpty()) {
+            return
+        }
+        AppExecutorUtil.getAppExecutorService().execute {
+            var channel: ChannelExec? = null
+            try {
+                channel = cleanupSession.openChannel("exec") as ChannelExec
+                channel.setCommand("rm -f -- " + remoteFiles.joinToString(" ") { it.shellQuoted() })
+                channel.connect()
+                // closing the channel before rm is done might stop it
+                val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CLEANUP_TIMEOUT_SECONDS)
+                while (!channel.isClosed && System.nanoTime() < deadline) {
+                    Thread.sleep(CLEANUP_POLL_MILLIS)
+                }
+            } catch (e: JSchException) {
+                logger.info("Could not remove the partially uploaded files from ${configuration.hostname}", e)
+            } finally {
+                channel?.disconnect()
+            }
         }
     }
 
-    private fun onPreservingTimestampsError(errorCode: AckError, reason: String) {
-        when (errorCode) {
-            AckError.ERROR -> Notifier.notifyError(
-                project,
-                SourcesyncBundle.message("scp.upload.fail.title"),
-                SourcesyncBundle.message("scp.upload.fail.preserve.timestamps.error.message", reason)
-            )
-
-            AckError.FATAL_ERROR -> Notifier.notifyError(
-                project,
-                SourcesyncBundle.message("scp.upload.fail.title"),
-                SourcesyncBundle.message("scp.upload.fail.preserve.timestamps.fatal.error.message", reason)
-            )
-
-            AckError.UNKNOWN -> Unit
+    /**
+     * The SCP protocol can't list remote directories, so the files are downloaded over SFTP channels opened on the same
+     * session. This requires the SFTP subsystem to be enabled on the remote.
+     */
+    override fun downloadFiles(src: Collection<Pair<Path, Path>>, indicator: ProgressIndicator): Collection<Path> {
+        val report = SyncReport()
+        val downloaded = SftpDownloader(session!!, configuration, report).download(src, indicator)
+        if (!indicator.isCanceled) {
+            report.notifyFailures(project, SourcesyncBundle.message("scp.download.fail.title"), "download.fail.multiple.files.message")
+            report.notifyDownloadSummary(project)
         }
+        return downloaded
     }
 
-    private fun onSendingFileModesError(errorCode: AckError, reason: String) {
-        when (errorCode) {
-            AckError.ERROR -> Notifier.notifyError(
-                project,
-                SourcesyncBundle.message("scp.upload.fail.title"),
-                SourcesyncBundle.message("scp.upload.fail.file.mode.error.message", configuration.hostname, reason)
-            )
-
-            AckError.FATAL_ERROR -> Notifier.notifyError(
-                project,
-                SourcesyncBundle.message("scp.upload.fail.title"),
-                SourcesyncBundle.message("scp.upload.fail.file.mode.fatal.error.message", configuration.hostname, reason)
-            )
-
-            AckError.UNKNOWN -> Unit
+    private fun registerSuccessfulUpload() {
+        statsService.registerSuccessfulUpload()
+        if (statsService.eligibleForDonations()) {
+            Notifier.notifyToProDueToHighNumberOfUploads(project)
         }
     }
 
-    private fun onSendFileContentError(errorCode: AckError, reason: String) {
-        when (errorCode) {
-            AckError.ERROR -> Notifier.notifyError(
-                project,
-                SourcesyncBundle.message("scp.upload.fail.title"),
-                SourcesyncBundle.message("scp.upload.fail.file.content.error.message", configuration.hostname, reason)
-            )
-
-            AckError.FATAL_ERROR -> Notifier.notifyError(
-                project,
-                SourcesyncBundle.message("scp.upload.fail.title"),
-                SourcesyncBundle.message("scp.upload.fail.file.content.fatal.error.message", configuration.hostname, reason)
-            )
-
-            AckError.UNKNOWN -> Unit
+    /**
+     * The path of [src] on the remote, as it would be written by the scp sink.
+     */
+    private fun remoteFileOf(src: String, uploadLocation: Path) = remoteDirOf(uploadLocation).trimEnd('/') + "/" + File(src).name
+
+    private fun remoteDirOf(uploadLocation: Path): String {
+        val segments = uploadLocation.map { it.toString() }.filter { it.isNotEmpty() }
+        return (listOf(configuration.workspaceBasePath.trimEnd('/')) + segments).joinToString("/").ifEmpty { "/" }
+    }
+
+    /**
+     * A recursive `scp -t` process on the remote, together with the directories it was asked to enter so far, relative
+     * to the workspace base path.
+     */
+    private inner class ScpSink(
+        private val channel: ChannelExec,
+        val out: OutputStream,
+        val inputStream: InputStream,
+        private val cancellation: TransferCancellation
+    ) {
+        private val currentDirs = mutableListOf<String>()
+
+        /**
+         * Leaves the directories that are not shared with [dirs] with `E` directives, then enters, and creates if
+         * needed, the missing ones with `D` directives. The mode of a `D` directive only applies to the directories the
+         * sink creates, since it runs without `-p`.
+         *
+         * @return the ack of the last directive, `0` if the sink is now in [dirs]
+         */
+        fun enterDirectory(dirs: List<String>, subject: String, report: SyncReport): Int {
+            val common = currentDirs.zip(dirs).takeWhile { (current, wanted) -> current == wanted }.size
+            while (currentDirs.size > common) {
+                out.write("E\n".toByteArray())
+                out.flush()
+                val dir = currentDirs.last()
+                val ack = checkAck(inputStream, subject, report) { errorCode, reason -> onLeavingDirectoryError(errorCode, dir, reason) }
+                if (ack != ACK_OK) {
+                    return ack
+                }
+                currentDirs.removeLast()
+            }
+            for (dir in dirs.drop(common)) {
+                out.write("D0755 0 $dir\n".toByteArray())
+                out.flush()
+                val ack = checkAck(inputStream, subject, report) { errorCode, reason -> onCreatingDirectoryError(errorCode, dir, reason) }
+                if (ack != ACK_OK) {
+                    return ack
+                }
+                currentDirs.add(dir)
+            }
+            return ACK_OK
         }
+
+        fun close() {
+            try {
+                out.close()
+            } catch (e: IOException) {
+                logger.debug("Could not close the SCP sink on ${configuration.hostname}", e)
+            } finally {
+                cancellation.untrack(channel)
+                channel.disconnect()
+            }
+        }
+    }
+
+    private fun onChannelConnectError(errorCode: AckError, reason: String) = when (errorCode) {
+        AckError.ERROR -> SourcesyncBundle.message("scp.upload.fail.channel.connect.error.message", configuration.hostname, reason)
+        AckError.FATAL_ERROR -> SourcesyncBundle.message("scp.upload.fail.channel.connect.fatal.error.message", configuration.hostname, reason)
+        AckError.UNKNOWN -> null
+    }
+
+    private fun onCreatingDirectoryError(errorCode: AckError, dir: String, reason: String) = when (errorCode) {
+        AckError.ERROR -> SourcesyncBundle.message("scp.upload.fail.directory.error.message", dir, configuration.hostname, reason)
+        AckError.FATAL_ERROR -> SourcesyncBundle.message("scp.upload.fail.directory.fatal.error.message", dir, configuration.hostname, reason)
+        AckError.UNKNOWN -> null
+    }
+
+    private fun onLeavingDirectoryError(errorCode: AckError, dir: String, reason: String) = when (errorCode) {
+        AckError.ERROR -> SourcesyncBundle.message("scp.upload.fail.leave.directory.error.message", dir, configuration.hostname, reason)
+        AckError.FATAL_ERROR -> SourcesyncBundle.message("scp.upload.fail.leave.directory.fatal.error.message", dir, configuration.hostname, reason)
+        AckError.UNKNOWN -> null
+    }
+
+    private fun onPreservingTimestampsError(errorCode: AckError, reason: String) = when (errorCode) {
+        AckError.ERROR -> SourcesyncBundle.message("scp.upload.fail.preserve.timestamps.error.message", reason)
+        AckError.FATAL_ERROR -> SourcesyncBundle.message("scp.upload.fail.preserve.timestamps.fatal.error.message", reason)
+        AckError.UNKNOWN -> null
+    }
+
+    private fun onSendingFileModesError(errorCode: AckError, reason: String) = when (errorCode) {
+        AckError.ERROR -> SourcesyncBundle.message("scp.upload.fail.file.mode.error.message", configuration.hostname, reason)
+        AckError.FATAL_ERROR -> SourcesyncBundle.message("scp.upload.fail.file.mode.fatal.error.message", configuration.hostname, reason)
+        AckError.UNKNOWN -> null
+    }
+
+    private fun onSendFileContentError(errorCode: AckError, reason: String) = when (errorCode) {
+        AckError.ERROR -> SourcesyncBundle.message("scp.upload.fail.file.content.error.message", configuration.hostname, reason)
+        AckError.FATAL_ERROR -> SourcesyncBundle.message("scp.upload.fail.file.content.fatal.error.message", configuration.hostname, reason)
+        AckError.UNKNOWN -> null
     }
 
     @Throws(IOException::class)
     /**
      * Reads the server response (ack) for a client command
      */
-    private fun checkAck(inStream: InputStream, onError: (errorCode: AckError, reason: String) -> Unit): Int {
+    private fun checkAck(inStream: InputStream, subject: String, report: SyncReport, onError: (errorCode: AckError, reason: String) -> String?): Int {
         val b = inStream.read()
         // b may be 0 for success,
         // 1 for error,
@@ -284,13 +634,12 @@ class SCPFileSynchronizer(private val configuration: ScpSyncConfiguration, val p
         do {
             c = inStream.read()
             sb.append(c.toChar())
-        } while (c != '\n'.code)
-        syncStatusService.removeRunningSync(configuration.name)
-        onError(AckError.from(b), sb.toString())
+        } while (c != '\n'.code && c != -1)
+        onError(AckError.from(b), sb.toString())?.let { report.fail(subject, it) }
         return b
     }
 
-    private enum class AckError(private val code: Int) {
+    private enum class AckError(val code: Int) {
         ERROR(1), FATAL_ERROR(2), UNKNOWN(3);
 
         companion object {
@@ -299,6 +648,13 @@ class SCPFileSynchronizer(private val configuration: ScpSyncConfiguration, val p
     }
 
     companion object {
+        private const val ACK_OK = 0
+        private const val LISTED_DIRS_PER_COMMAND = 200
+        private const val CLEANUP_TIMEOUT_SECONDS = 10L
+        private const val CLEANUP_POLL_MILLIS = 20L
+
         val SSH_KNOWN_HOSTS = Paths.get(System.getProperty("user.home"), ".ssh", "known_hosts").toString()
+
+        private val logger = logger<SCPFileSynchronizer>()
     }
 }
\ No newline at end of file
@@ -13,47 +13,63 @@ package org.wavescale.sourcesync.synchronizer
 
 import com.intellij.openapi.components.service
 import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.project.Project
+import com.intellij.util.concurrency.AppExecutorUtil
 import com.jcraft.jsch.ChannelSftp
 import com.jcraft.jsch.JSch
 import com.jcraft.jsch.JSchException
 import com.jcraft.jsch.Session
+import com.jcraft.jsch.SftpException
 import com.jcraft.jsch.SftpProgressMonitor
 import java.io.File
 import java.io.FileInputStream
 import java.io.IOException
 import java.nio.file.Path
 import java.nio.file.Paths
+import java.util.concurrent.ConcurrentHashMap
 import org.wavescale.sourcesync.SourcesyncBundle
 import org.wavescale.sourcesync.api.Utils
 import org.wavescale.sourcesync.configurations.AuthenticationType
+import org.wavescale.sourcesync.configurations.CompressionPolicy
 import org.wavescale.sourcesync.configurations.SshSyncConfiguration
 import org.wavescale.sourcesync.notifications.Notifier
+import org.wavescale.sourcesync.services.BandwidthService
+import org.wavescale.sourcesync.services.ContentManifestService
+import org.wavescale.sourcesync.services.SshSessionPool
 import org.wavescale.sourcesync.services.StatsService
-import org.wavescale.sourcesync.services.SyncStatusService
+import org.wavescale.sourcesync.services.TransferPhase
 
 
 /**
  * Build a file synchronizer from general info contained by **configuration** param.
  */
 class SFTPFileSynchronizer(private val configuration: SshSyncConfiguration, val project: Project) : Synchronizer {
-    private val syncStatusService = service<SyncStatusService>()
     private val statsService = service<StatsService>()
+    private val bandwidthLimiter = service<BandwidthService>().limiterFor(configuration)
 
-    private val jsch: JSch = JSch()
+    private val sessionPool = service<SshSessionPool>()
     private var session: Session? = null
+    // only used by the adaptive compression policy, for the files that compress well
+    private var compressedSession: Session? = null
+
+    private val remoteDirCache = RemoteDirectoryCache()
+
+    // probed once, on the first batch uploaded as a tar stream
+    private var isTarAvailable: Boolean? = null
+
+    // probed once, on the first file big enough for a delta transfer
+    private var isPythonAvailable: Boolean? = null
 
     private var isConnected: Boolean = false
     override fun connect(): Boolean {
         return if (!isConnected) {
             try {
-                initSession()
-                session!!.connect()
+                session = sessionPool.acquire(configuration, compressByDefault) { createSession(compressByDefault) }
                 isConnected = true
                 true
             } catch (e: JSchException) {
-                syncStatusService.removeRunningSync(configuration.name)
                 Notifier.notifyError(
                     project,
                     SourcesyncBundle.message("ssh.upload.fail.text"),
@@ -64,23 +80,26 @@ class SFTPFileSynchronizer(private val configuration: SshSyncConfiguration, val
         } else true
     }
 
+    private val compressByDefault get() = configuration.compressionPolicy == CompressionPolicy.ALWAYS
+
+    /**
+     * Creates a new, not yet connected, session for the [configuration]. Only called by the [SshSessionPool] when
+     * there is no healthy pooled session to reuse.
+     */
     @Throws(JSchException::class)
-    private fun initSession() {
-        syncStatusService.addRunningSync(configuration.name)
-        session = jsch.getSession(configuration.username, configuration.hostname, configuration.port.toInt())
-        session!!.setConfig("StrictHostKeyChecking", "no")
+    private fun createSession(compressed: Boolean): Session {
+        val jsch = JSch()
+        val newSession = jsch.getSession(configuration.username, configuration.hostname, configuration.port.toInt())
+        newSession.setConfig("StrictHostKeyChecking", "no")
+        if (compressed) {
+            newSession.useCompression()
+        }
         if (configuration.authenticationType == AuthenticationType.KEY_PAIR) {
-            session!!.setConfig("PreferredAuthentications", "publickey")
+            newSession.setConfig("PreferredAuthentications", "publickey")
             try {
                 Utils.createFile(SSH_KNOWN_HOSTS)
             } catch (e: IOException) {
-                syncStatusService.removeRunningSync(configuration.name)
-                Notifier.notifyError(
-                    project,
-                    SourcesyncBundle.message("ssh.upload.fail.text"),
-                    "Could not identify nor create the SSH known hosts file at ${SCPFileSynchronizer.SSH_KNOWN_HOSTS}. Reason: ${e.message}",
-                )
-                return
+                throw JSchException("Could not identify nor create the SSH known hosts file at $SSH_KNOWN_HOSTS. Reason: ${e.message}", e)
             }
             jsch.setKnownHosts(SSH_KNOWN_HOSTS)
             // add private key and passphrase if exists
@@ -90,127 +109,406 @@ class SFTPFileSynchronizer(private val configuration: SshSyncConfiguration, val
                 jsch.addIdentity(configuration.privateKey)
             }
         } else {
-            session!!.setPassword(configuration.password)
+            newSession.setPassword(configuration.password)
         }
+        return newSession
     }
 
+    /**
+     * Hands the sessions back to the [SshSessionPool]. The underlying SSH connections stay open for the next sync.
+     */
     override fun disconnect() {
         try {
-            session?.disconnect()
+            session?.let { sessionPool.release(configuration, compressByDefault, it) }
+            compressedSession?.let { sessionPool.release(configuration, true, it) }
         } finally {
+            session = null
+            compressedSession = null
             isConnected = false
-            syncStatusService.removeRunningSync(configuration.name)
+            remoteDirCache.clear()
         }
     }
 
     override fun syncFile(sourcePath: String, uploadLocation: Path, indicator: ProgressIndicator) {
-        val preserveTimestamp = configuration.preserveTimestamps
-        val channelSftp: ChannelSftp
-        try {
-            channelSftp = session!!.openChannel("sftp") as ChannelSftp
-            channelSftp.connect()
-        } catch (e: JSchException) {
-            syncStatusService.removeRunningSync(configuration.name)
-            Notifier.notifyError(
-                project,
-                SourcesyncBundle.message("ssh.upload.fail.text"),
-                "An error was encountered while trying to open a SSH connection to ${configuration.hostname}. Reason: ${e.message}",
-            )
+        syncFiles(listOf(Pair(sourcePath, uploadLocation)), indicator)
+    }
+
+    /**
+     * Uploads all the given files over [uploadWorkers][org.wavescale.sourcesync.configurations.BaseSyncConfiguration.uploadWorkers]
+     * SFTP channels opened on the same session. Each channel is opened and validates the remote workspace base path
+     * only once, and then keeps uploading files until the whole batch is drained.
+     */
+    override fun syncFiles(src: Collection<Pair<String, Path>>, indicator: ProgressIndicator) {
+        if (src.isEmpty()) {
             return
         }
+        syncFileChunks(listOf(src).iterator(), indicator)
+    }
+
+    /**
+     * Every chunk is uploaded as soon as it is available, while failures and the summary of all the chunks are
+     * reported once the last chunk is done.
+     *
+     * Canceling the [indicator] tears down the channels in use right away. Files written in place that were cut short
+     * are then removed, while large files keep their partial upload for the next sync to resume.
+     */
+    override fun syncFileChunks(chunks: Iterator<Collection<Pair<String, Path>>>, indicator: ProgressIndicator) {
+        val report = SyncReport()
+        TransferCancellation(indicator).use { cancellation ->
+            try {
+                chunks.forEach {
+                    cancellation.checkCanceled()
+                    syncChunk(it, indicator, cancellation, report)
+                }
+            } catch (e: ProcessCanceledException) {
+                removeInterruptedFiles(cancellation.interruptedFiles())
+                throw e
+            }
+        }
 
-        if (!channelSftp.absoluteDirExists(configuration.workspaceBasePath)) {
-            syncStatusService.removeRunningSync(configuration.name)
-            Notifier.notifyError(
-                project,
-                SourcesyncBundle.message("ssh.upload.fail.text"),
-                "Remote project base path ${configuration.workspaceBasePath} does not exist or is not a directory. Please make sure the value is a valid absolute directory path on ${configuration.hostname}",
-            )
+        report.notifyFailures(project, SourcesyncBundle.message("ssh.upload.fail.text"))
+        if (configuration.skipUnchanged || configuration.contentManifest) {
+            report.notifySummary(project)
+        }
+    }
+
+    private fun syncChunk(src: Collection<Pair<String, Path>>, indicator: ProgressIndicator, cancellation: TransferCancellation, report: SyncReport) {
+        if (src.isEmpty()) {
             return
         }
 
-        channelSftp.cd(configuration.workspaceBasePath)
+        val manifest = if (configuration.contentManifest) project.service<ContentManifestService>().manifestFor(configuration) else null
+        val manifestEntries = manifest?.let {
+            indicator.text = "Hashing files..."
+            it.changedFiles(src)
+        }
+        var files = manifestEntries?.keys ?: src
+        if (configuration.skipUnchanged && files.isNotEmpty()) {
+            indicator.text = "Comparing with ${configuration.hostname}..."
+            files = filterChangedFiles(files, configuration.clockSkewTolerance, ::listRemoteDirs)
+        }
+        report.skip(src.size - files.size)
+        if (files.isNotEmpty()) {
+            uploadFiles(files, indicator, cancellation, report)
+        }
+        if (manifest != null && manifestEntries != null) {
+            // files found unchanged on the remote are up to date as well
+            val uploadedFiles = files.toSet()
+            manifest.record(manifestEntries.filterKeys { it !in uploadedFiles || report.isUploaded(it.first) })
+        }
+    }
 
-        if (!channelSftp.localDirExistsOnRemote(uploadLocation.toString())) {
-            logger.info("Upload path $uploadLocation does not exist or is not a directory. Going to create it.")
-            val exists = channelSftp.mkLocalDirsOnRemote(uploadLocation.toString())
-            if (!exists) {
-                syncStatusService.removeRunningSync(configuration.name)
-                Notifier.notifyError(
-                    project,
-                    SourcesyncBundle.message("ssh.upload.fail.text"),
-                    "Upload path $uploadLocation could not be created on ${configuration.hostname}"
-                )
+    /**
+     * With the adaptive compression policy, the files that compress well are uploaded over a compressed session and the
+     * others over the plain one. The progress covers both, as a single batch.
+     */
+    private fun uploadFiles(files: Collection<Pair<String, Path>>, indicator: ProgressIndicator, cancellation: TransferCancellation, report: SyncReport) {
+        val progress = BatchProgress(indicator, files.size, files.sumOf { (file, _) -> File(file).length() })
+        if (configuration.compressionPolicy != CompressionPolicy.ADAPTIVE) {
+            uploadFiles(files, indicator, progress, cancellation, report, session!!)
+        } else {
+            val (compressible, incompressible) = CompressionAdvisor.partition(files, configuration)
+            if (compressible.isNotEmpty()) {
+                uploadFiles(compressible, indicator, progress, cancellation, report, compressedSession() ?: session!!)
+            }
+            if (incompressible.isNotEmpty()) {
+                uploadFiles(incompressible, indicator, progress, cancellation, report, session!!)
+            }
+        }
+        progress.finish()
+    }
+
+    private fun compressedSession(): Session? {
+        compressedSession?.let { return it }
+        return try {
+            sessionPool.acquire(configuration, true) { createSession(true) }.also { compressedSession = it }
+        } catch (e: JSchException) {
+            logger.info("Could not open a compressed SSH session to ${configuration.hostname}, uploading without compression", e)
+            null
+        }
+    }
+
+    private fun uploadFiles(
+        files: Collection<Pair<String, Path>>,
+        indicator: ProgressIndicator,
+        progress: BatchProgress,
+        cancellation: TransferCancellation,
+        report: SyncReport,
+        uploadSession: Session
+    ) {
+        val started = System.nanoTime()
+        if (configuration.tarStreamUploads && files.size > 1) {
+            val tarUploader = TarStreamUploader(uploadSession, configuration, bandwidthLimiter, cancellation)
+            val tarAvailable = isTarAvailable ?: tarUploader.isTarAvailable().also { isTarAvailable = it }
+            if (tarAvailable) {
+                if (statsService.measure(configuration, TransferPhase.TRANSFER) { tarUploader.upload(files, indicator, progress, report) }) {
+                    files.forEach { (file, _) -> report.uploaded(file) }
+                    if (statsService.registerSuccessfulUploads(files.size)) {
+                        Notifier.notifyToProDueToHighNumberOfUploads(project)
+                    }
+                    val uploadedBytes = files.sumOf { (file, _) -> File(file).length() }
+                    statsService.recordFiles(configuration, files.size, uploadedBytes)
+                    CompressionAdvisor.recordThroughput(configuration, uploadedBytes, System.nanoTime() - started)
+                }
                 return
             }
+            logger.info("tar is not available on ${configuration.hostname}, falling back to uploading files one by one")
+        }
+
+        val deltaUploader = if (configuration.deltaTransfers) DeltaUploader(uploadSession, configuration, bandwidthLimiter, cancellation, isPythonAvailable) else null
+        runUploadWorkers(files, configuration.uploadWorkers) { next ->
+            uploadBatch(uploadSession, next, indicator, progress, cancellation, deltaUploader, report)
+        }
+        deltaUploader?.pythonAvailability?.let { isPythonAvailable = it }
+        val uploadedBytes = files.filter { (file, _) -> report.isUploaded(file) }.sumOf { (file, _) -> File(file).length() }
+        CompressionAdvisor.recordThroughput(configuration, uploadedBytes, System.nanoTime() - started)
+    }
+
+    /**
+     * Lists the remote directories of the given upload locations, one `ls` per directory, spread over the same number
+     * of channels as the uploads. Directories that can't be listed are left out, so their files are uploaded.
+     */
+    private fun listRemoteDirs(uploadLocations: Set<Path>): Map<Path, Map<String, RemoteFileInfo>> {
+        val listings = ConcurrentHashMap<Path, Map<String, RemoteFileInfo>>()
+        runUploadWorkers(uploadLocations, configuration.uploadWorkers) { next ->
+            val channelSftp: ChannelSftp
+            try {
+                channelSftp = session!!.openChannel("sftp") as ChannelSftp
+                channelSftp.connect()
+            } catch (e: JSchException) {
+                logger.info("Could not list the remote directories on ${configuration.hostname}", e)
+                return@runUploadWorkers
+            }
+
+            try {
+                channelSftp.cd(configuration.workspaceBasePath)
+                while (true) {
+                    val uploadLocation = next() ?: break
+                    channelSftp.listFiles(channelSftp.localDirOnRemote(uploadLocation.toString()))?.let {
+                        listings[uploadLocation] = it
+                    }
+                }
+            } catch (e: SftpException) {
+                logger.info("Could not list the remote directories on ${configuration.hostname}", e)
+            } finally {
+                channelSftp.disconnect()
+            }
         }
-        if (!channelSftp.cdLocalDirsOnRemote(uploadLocation.toString())) {
-            syncStatusService.removeRunningSync(configuration.name)
-            Notifier.notifyError(
-                project,
-                SourcesyncBundle.message("ssh.upload.fail.text"),
-                "Could not change directory to $uploadLocation"
+        return listings
+    }
+
+    /**
+     * Opens a SFTP channel and uploads files through it until [next] runs out of files.
+     */
+    private fun uploadBatch(
+        uploadSession: Session,
+        next: () -> Pair<String, Path>?,
+        indicator: ProgressIndicator,
+        progress: BatchProgress,
+        cancellation: TransferCancellation,
+        deltaUploader: DeltaUploader?,
+        report: SyncReport
+    ) {
+        val channelSftp: ChannelSftp
+        try {
+            channelSftp = statsService.measure(configuration, TransferPhase.CHANNEL_OPEN) {
+                (uploadSession.openChannel("sftp") as ChannelSftp).apply { connect() }
+            }
+            // keep the link busy while waiting for write acks instead of doing one round trip per chunk
+            channelSftp.bulkRequests = configuration.sftpWriteWindow
+        } catch (e: JSchException) {
+            report.fail(
+                configuration.hostname,
+                "An error was encountered while trying to open a SSH connection to ${configuration.hostname}. Reason: ${e.message}"
             )
             return
         }
 
-        // upload file
+        cancellation.track(channelSftp)
+        try {
+            if (!statsService.measure(configuration, TransferPhase.DIRECTORIES) { channelSftp.absoluteDirExists(configuration.workspaceBasePath) }) {
+                report.fail(
+                    configuration.hostname,
+                    "Remote project base path ${configuration.workspaceBasePath} does not exist or is not a directory. Please make sure the value is a valid absolute directory path on ${configuration.hostname}"
+                )
+                return
+            }
+
+            channelSftp.cd(configuration.workspaceBasePath)
+            while (true) {
+                cancellation.checkCanceled()
+                val (sourcePath, uploadLocation) = next() ?: break
+                val fileProgress = progress.file(File(sourcePath).length())
+                try {
+                    uploadFile(channelSftp, sourcePath, uploadLocation, indicator, fileProgress, cancellation, deltaUploader, report)
+                } finally {
+                    fileProgress.done()
+                }
+            }
+        } catch (e: SftpException) {
+            cancellation.rethrowIfCanceled(e)
+            report.fail(configuration.hostname, "Could not change directory to ${configuration.workspaceBasePath}. Reason: ${e.message}")
+        } finally {
+            cancellation.untrack(channelSftp)
+            channelSftp.disconnect()
+        }
+    }
+
+    /**
+     * Uploads a single file through an already connected [channelSftp] whose working directory is the workspace base
+     * path. The file is uploaded using its absolute remote path, so the working directory is never changed and files
+     * can be uploaded in any order.
+     */
+    private fun uploadFile(
+        channelSftp: ChannelSftp,
+        sourcePath: String,
+        uploadLocation: Path,
+        indicator: ProgressIndicator,
+        fileProgress: BatchProgress.FileProgress,
+        cancellation: TransferCancellation,
+        deltaUploader: DeltaUploader?,
+        report: SyncReport
+    ) {
+        val started = System.nanoTime()
+        val preserveTimestamp = configuration.preserveTimestamps
         val toUpload = File(sourcePath)
-        val progressMonitor: SftpProgressMonitor = SftpMonitor(toUpload.length(), indicator)
+        val remoteDir = channelSftp.localDirOnRemote(uploadLocation.toString())
+        if (!statsService.measure(configuration, TransferPhase.DIRECTORIES) { channelSftp.mkLocalDirsOnRemote(uploadLocation.toString(), remoteDirCache) }) {
+            report.fail(toUpload.name, "Upload path $uploadLocation could not be created on ${configuration.hostname}")
+            return
+        }
+
+        // upload file
+        val remoteFile = "$remoteDir/${toUpload.name}"
+        val deltaBytes = deltaUploader?.let {
+            statsService.measure(configuration, TransferPhase.TRANSFER) { it.upload(toUpload, remoteFile, indicator, fileProgress) }
+        }
+        if (deltaBytes != null) {
+            report.uploaded(sourcePath)
+            registerSuccessfulUpload()
+            statsService.recordFile(configuration, deltaBytes, System.nanoTime() - started)
+            return
+        }
+        // a delta transfer cut short by a cancellation must not fall back to a full upload
+        cancellation.checkCanceled()
+        val progressMonitor = SftpMonitor(indicator, fileProgress, cancellation)
+        val resumable = isResumable(toUpload)
         try {
-            channelSftp.put(FileInputStream(toUpload), toUpload.name, progressMonitor, ChannelSftp.OVERWRITE)
+            val sentBytes = statsService.measure(configuration, TransferPhase.TRANSFER) {
+                if (resumable) {
+                    channelSftp.putResumable(toUpload, remoteFile, progressMonitor, bandwidthLimiter, cancellation)
+                } else {
+                    FileInputStream(toUpload).throttled(bandwidthLimiter).use {
+                        channelSftp.put(it, remoteFile, progressMonitor, ChannelSftp.OVERWRITE)
+                    }
+                    // the channel stops sending without failing when the monitor asks it to
+                    cancellation.checkCanceled()
+                    toUpload.length()
+                }
+            }
             if (preserveTimestamp) {
-                val sftpATTRS = channelSftp.lstat(toUpload.name)
-                val lastAcc = sftpATTRS.aTime
-                // this is a messed method: if lastModified is greater than Integer.MAX_VALUE
-                // then timestamp will not be ok.
-                sftpATTRS.setACMODTIME(lastAcc, java.lang.Long.valueOf(toUpload.lastModified() / 1000).toInt())
-                channelSftp.setStat(toUpload.name, sftpATTRS)
+                statsService.measure(configuration, TransferPhase.TIMESTAMPS) {
+                    val sftpATTRS = channelSftp.lstat(remoteFile)
+                    val lastAcc = sftpATTRS.aTime
+                    // this is a messed method: if lastModified is greater than Integer.MAX_VALUE
+                    // then timestamp will not be ok.
+                    sftpATTRS.setACMODTIME(lastAcc, java.lang.Long.valueOf(toUpload.lastModified() / 1000).toInt())
+                    channelSftp.setStat(remoteFile, sftpATTRS)
+                }
             }
+            report.uploaded(sourcePath)
+            statsService.recordFile(configuration, sentBytes, System.nanoTime() - started)
         } catch (e: Exception) {
-            syncStatusService.removeRunningSync(configuration.name)
-            Notifier.notifyError(
-                project,
-                SourcesyncBundle.message("ssh.upload.fail.text"),
-                "Upload to ${configuration.hostname} failed. Reason: ${e.message}"
-            )
+            if (e is ProcessCanceledException || cancellation.isCanceled) {
+                // a resumable upload keeps its partial file, a file written in place is left truncated
+                if (!resumable && progressMonitor.sentBytes in 1 until toUpload.length()) {
+                    cancellation.interrupted(remoteFile)
+                }
+                cancellation.rethrowIfCanceled(e)
+            }
+            // the directory might have been removed behind our back
+            remoteDirCache.invalidate(remoteDir)
+            val resumeHint = if (resumable) ". The next upload of this file will resume where this one stopped" else ""
+            report.fail(toUpload.name, "Upload to ${configuration.hostname} failed. Reason: ${e.message}$resumeHint")
         }
-        channelSftp.disconnect()
     }
 
-    private inner class SftpMonitor(totalLength: Long, private val indicator: ProgressIndicator) : SftpProgressMonitor {
-        val totalLength: Double
-        var totalUploaded: Long
+    /**
+     * Removes, in the background, the remote files that a canceled sync left partially written.
+     */
+    private fun removeInterruptedFiles(remoteFiles: List<String>) {
+        val cleanupSession = session ?: return
+        if (remoteFiles.isEmpty()) {
+            return
+        }
+        AppExecutorUtil.getAppExecutorService().execute {
+            try {
+                val channelSftp = cleanupSession.openChannel("sftp") as ChannelSftp
+                channelSftp.connect()
+                try {
+                    remoteFiles.forEach {
+                        try {
+                            channelSftp.rm(it)
+                        } catch (e: SftpException) {
+                            logger.info("Could not remove the partially uploaded $it from ${configuration.hostname}", e)
+                        }
+                    }
+                } finally {
+                    channelSftp.disconnect()
+                }
+            } catch (e: JSchException) {
+                logger.info("Could not remove the partially uploaded files from ${configuration.hostname}", e)
+            }
+        }
+    }
 
-        init {
-            this.totalLength = totalLength + 0.0
-            totalUploaded = 0
+    override fun downloadFiles(src: Collection<Pair<Path, Path>>, indicator: ProgressIndicator): Collection<Path> {
+        val report = SyncReport()
+        val downloaded = SftpDownloader(session!!, configuration, report).download(src, indicator)
+        if (!indicator.isCanceled) {
+            report.notifyFailures(project, SourcesyncBundle.message("ssh.download.fail.text"), "download.fail.multiple.files.message")
+            report.notifyDownloadSummary(project)
         }
+        return downloaded
+    }
+
+    private inner class SftpMonitor(
+        private val indicator: ProgressIndicator,
+        private val progress: BatchProgress.FileProgress,
+        private val cancellation: TransferCancellation
+    ) : SftpProgressMonitor {
+        @Volatile
+        var sentBytes = 0L
+            private set
 
         override fun init(opcode: Int, src: String, dest: String, max: Long) {
             val remoteFile = File(dest)
             if (SftpProgressMonitor.PUT == opcode) {
                 indicator.text = "Uploading...[" + remoteFile.name + "]"
-                indicator.isIndeterminate = false
             }
         }
 
         override fun count(count: Long): Boolean {
-            totalUploaded += count
-            indicator.fraction = totalUploaded / totalLength
+            sentBytes += count
+            progress.add(count)
             // false will kill the upload
-            return true
+            return !cancellation.isCanceled
         }
 
         override fun end() {
-            indicator.fraction = 1.0
-            statsService.registerSuccessfulUpload()
-            if (statsService.eligibleForDonations()) {
-                Notifier.notifyToProDueToHighNumberOfUploads(project)
+            if (!cancellation.isCanceled) {
+                registerSuccessfulUpload()
             }
         }
     }
 
+    private fun registerSuccessfulUpload() {
+        statsService.registerSuccessfulUpload()
+        if (statsService.eligibleForDonations()) {
+            Notifier.notifyToProDueToHighNumberOfUploads(project)
+        }
+    }
+
     companion object {
         val SSH_KNOWN_HOSTS = Paths.get(System.getProperty("user.home"), ".ssh", "known_hosts").toString()
 
@@ -0,0 +1,252 @@
+package org.wavescale.sourcesync.synchronizer
+
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.jcraft.jsch.ChannelSftp
+import com.jcraft.jsch.JSchException
+import com.jcraft.jsch.Session
+import com.jcraft.jsch.SftpATTRS
+import com.jcraft.jsch.SftpException
+import com.jcraft.jsch.SftpProgressMonitor
+import java.io.IOException
+import java.nio.file.AtomicMoveNotSupportedException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import org.wavescale.sourcesync.configurations.BaseSyncConfiguration
+
+private const val DOWNLOAD_SUFFIX = ".sourcesync-download"
+private const val OWNER_EXECUTE = 0b001_000_000
+
+private val logger = logger<SftpDownloader>()
+
+/**
+ * Downloads files and directories from the workspace base path of [configuration] into the project, over SFTP channels
+ * opened on [session].
+ *
+ * Remote directories are listed level by level, with the directories of a level spread over the workers. Files are
+ * then downloaded by [uploadWorkers][BaseSyncConfiguration.uploadWorkers] channels at once, each reading
+ * [sftpWriteWindow][BaseSyncConfiguration.sftpWriteWindow] requests ahead of the data it already received. Every file
+ * is written to a temporary file next to its local copy and moved over it once complete, so the IDE never sees a
+ * partially downloaded file. Files whose local copy has the same size and modification time as the remote one are
+ * skipped.
+ *
+ * Canceling the indicator tears down the channels right away. The files already downloaded are kept and the ones cut
+ * short leave their local copy untouched.
+ */
+internal class SftpDownloader(
+    private val session: Session,
+    private val configuration: BaseSyncConfiguration,
+    private val report: SyncReport
+) {
+    private class RemoteFile(val remotePath: String, val localPath: Path, val attrs: SftpATTRS)
+
+    /**
+     * Downloads [src], pairs of local path and remote path relative to the workspace base path.
+     *
+     * @return the local files that were written
+     */
+    fun download(src: Collection<Pair<Path, Path>>, indicator: ProgressIndicator): List<Path> {
+        val downloaded = ConcurrentLinkedQueue<Path>()
+        TransferCancellation(indicator).use { cancellation ->
+            try {
+                download(src, indicator, cancellation, downloaded)
+            } catch (e: ProcessCanceledException) {
+                logger.info("Download from ${configuration.hostname} canceled after ${downloaded.size} files")
+            }
+        }
+        return downloaded.toList()
+    }
+
+    private fun download(
+        src: Collection<Pair<Path, Path>>,
+        indicator: ProgressIndicator,
+        cancellation: TransferCancellation,
+        downloaded: MutableCollection<Path>
+    ) {
+        indicator.text = "Listing files on ${configuration.hostname}..."
+        val remoteFiles = listRemoteFiles(src, cancellation)
+        val changedFiles = remoteFiles.filterNot { it.isUpToDate() }
+        report.skip(remoteFiles.size - changedFiles.size)
+        if (changedFiles.isEmpty()) {
+            return
+        }
+
+        val progress = BatchProgress(indicator, changedFiles.size, changedFiles.sumOf { it.attrs.size })
+        runUploadWorkers(changedFiles, configuration.uploadWorkers, "Sourcesync Download Workers") { next ->
+            withChannel(cancellation) { channelSftp ->
+                while (true) {
+                    cancellation.checkCanceled()
+                    val remoteFile = next() ?: break
+                    indicator.text = "Downloading...[${remoteFile.localPath.fileName}]"
+                    val fileProgress = progress.file(remoteFile.attrs.size)
+                    if (downloadFile(channelSftp, remoteFile, fileProgress, cancellation)) {
+                        report.downloaded(remoteFile.localPath.toString())
+                        downloaded.add(remoteFile.localPath)
+                    }
+                    fileProgress.done()
+                }
+            }
+        }
+        progress.finish()
+    }
+
+    /**
+     * Resolves [src] to the remote files to download, descending into the remote directories.
+     */
+    private fun listRemoteFiles(src: Collection<Pair<Path, Path>>, cancellation: TransferCancellation): List<RemoteFile> {
+        val files = ConcurrentLinkedQueue<RemoteFile>()
+        var directories = ConcurrentLinkedQueue<Pair<String, Path>>()
+        withChannel(cancellation) { channelSftp ->
+            for ((localPath, remoteLocation) in src) {
+                val remotePath = remotePathOf(remoteLocation)
+                try {
+                    val attrs = channelSftp.stat(remotePath)
+                    when {
+                        attrs.isDir -> directories.add(Pair(remotePath, localPath))
+                        attrs.isReg -> files.add(RemoteFile(remotePath, localPath, attrs))
+                    }
+                } catch (e: SftpException) {
+                    cancellation.rethrowIfCanceled(e)
+                    report.fail(localPath.fileName.toString(), "$remotePath was not found on ${configuration.hostname}")
+                }
+            }
+        }
+
+        while (directories.isNotEmpty()) {
+            val nextLevel = ConcurrentLinkedQueue<Pair<String, Path>>()
+            runUploadWorkers(directories, configuration.uploadWorkers, "Sourcesync Download Workers") { next ->
+                withChannel(cancellation) { channelSftp ->
+                    while (true) {
+                        cancellation.checkCanceled()
+                        val (remoteDir, localDir) = next() ?: break
+                        try {
+                            val normalizedDir = localDir.normalize()
+                            channelSftp.ls(remoteDir)
+                                .filter { it.filename != "." && it.filename != ".." }
+                                .forEach {
+                                    val remotePath = "$remoteDir/${it.filename}"
+                                    val localPath = normalizedDir.resolve(it.filename).normalize()
+                                    // a name with separators or dot segments, sent by a misbehaving server, must not escape the directory
+                                    if (localPath.parent != normalizedDir) {
+                                        report.fail(it.filename, "Skipped $remotePath, it would be written outside of $localDir")
+                                        return@forEach
+                                    }
+                                    when {
+                                        it.attrs.isDir -> nextLevel.add(Pair(remotePath, localPath))
+                                        it.attrs.isReg -> files.add(RemoteFile(remotePath, localPath, it.attrs))
+                                    }
+                                }
+                        } catch (e: SftpException) {
+                            cancellation.rethrowIfCanceled(e)
+                            report.fail(localDir.fileName.toString(), "Could not list $remoteDir on ${configuration.hostname}. Reason: ${e.message}")
+                        }
+                    }
+                }
+            }
+            directories = nextLevel
+        }
+        return files.toList()
+    }
+
+    private fun downloadFile(
+        channelSftp: ChannelSftp,
+        remoteFile: RemoteFile,
+        progress: BatchProgress.FileProgress,
+        cancellation: TransferCancellation
+    ): Boolean {
+        val localPath = remoteFile.localPath
+        var tempFile: Path? = null
+        try {
+            Files.createDirectories(localPath.parent)
+            tempFile = Files.createTempFile(localPath.parent, ".${localPath.fileName}.", DOWNLOAD_SUFFIX)
+            Files.newOutputStream(tempFile).use { channelSftp.get(remoteFile.remotePath, it, DownloadMonitor(progress, cancellation)) }
+            // the channel stops reading without failing when the monitor asks it to, the file is not complete
+            cancellation.checkCanceled()
+            Files.setLastModifiedTime(tempFile, FileTime.from(remoteFile.attrs.mTime.toLong(), TimeUnit.SECONDS))
+            if (remoteFile.attrs.permissions and OWNER_EXECUTE != 0) {
+                tempFile.toFile().setExecutable(true)
+            }
+            moveIntoPlace(tempFile, localPath)
+            return true
+        } catch (e: SftpException) {
+            cancellation.rethrowIfCanceled(e)
+            report.fail(localPath.fileName.toString(), "Download from ${configuration.hostname} failed. Reason: ${e.message}")
+        } catch (e: IOException) {
+            cancellation.rethrowIfCanceled(e)
+            report.fail(localPath.fileName.toString(), "Could not write $localPath. Reason: ${e.message}")
+        } finally {
+            // already moved into place, unless the download failed
+            tempFile?.toFile()?.delete()
+        }
+        return false
+    }
+
+    private fun moveIntoPlace(tempFile: Path, localPath: Path) {
+        try {
+            Files.move(tempFile, localPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        } catch (e: AtomicMoveNotSupportedException) {
+            Files.move(tempFile, localPath, StandardCopyOption.REPLACE_EXISTING)
+        }
+    }
+
+    /**
+     * Opens a SFTP channel for [block], with the read ahead configured, and closes it once [block] is done.
+     */
+    private fun withChannel(cancellation: TransferCancellation, block: (ChannelSftp) -> Unit) {
+        val channelSftp: ChannelSftp
+        try {
+            channelSftp = session.openChannel("sftp") as ChannelSftp
+            channelSftp.connect()
+            // keep the link busy while waiting for the data instead of doing one round trip per chunk
+            channelSftp.bulkRequests = configuration.sftpWriteWindow
+        } catch (e: JSchException) {
+            cancellation.rethrowIfCanceled(e)
+            logger.info("Could not open a SFTP channel to ${configuration.hostname}", e)
+            report.fail(
+                configuration.hostname,
+                "An error was encountered while trying to open a SFTP channel to ${configuration.hostname}. Reason: ${e.message}"
+            )
+            return
+        }
+        cancellation.track(channelSftp)
+        try {
+            block(channelSftp)
+        } finally {
+            cancellation.untrack(channelSftp)
+            channelSftp.disconnect()
+        }
+    }
+
+    private fun remotePathOf(remoteLocation: Path) =
+        (listOf(configuration.workspaceBasePath.trimEnd('/')) + remoteLocation.map { it.toString() }).joinToString("/")
+
+    private class DownloadMonitor(
+        private val progress: BatchProgress.FileProgress,
+        private val cancellation: TransferCancellation
+    ) : SftpProgressMonitor {
+        override fun init(op: Int, src: String, dest: String, max: Long) = Unit
+
+        override fun count(count: Long): Boolean {
+            progress.add(count)
+            return !cancellation.isCanceled
+        }
+
+        override fun end() = Unit
+    }
+
+    private fun RemoteFile.isUpToDate(): Boolean {
+        if (!Files.isRegularFile(localPath)) {
+            return false
+        }
+        return try {
+            Files.size(localPath) == attrs.size && Files.getLastModifiedTime(localPath).to(TimeUnit.SECONDS) == attrs.mTime.toLong()
+        } catch (e: IOException) {
+            false
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package org.wavescale.sourcesync.synchronizer
+
+/**
+ * Quotes this string so that a POSIX shell on the remote passes it as a single, literal, argument.
+ */
+internal fun String.shellQuoted() = "'" + this.replace("'", "'\\''") + "'"
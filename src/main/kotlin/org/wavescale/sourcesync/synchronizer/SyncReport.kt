@@ -0,0 +1,92 @@
+package org.wavescale.sourcesync.synchronizer
+
+import com.intellij.openapi.project.Project
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import org.jetbrains.annotations.PropertyKey
+import org.wavescale.sourcesync.SourcesyncBundle
+import org.wavescale.sourcesync.notifications.Notifier
+
+private const val MAX_REPORTED_FAILURES = 5
+
+/**
+ * Collects the outcome of every file of a batch: uploaded or downloaded, failed or skipped because it did not need to
+ * be transferred.
+ * Workers can record outcomes concurrently and the whole batch is reported with a single notification once it is done.
+ */
+class SyncReport {
+    private val failures = ConcurrentLinkedQueue<Pair<String, String>>()
+    private val uploadedFiles = ConcurrentHashMap.newKeySet<String>()
+    private val downloadedFiles = ConcurrentHashMap.newKeySet<String>()
+    private val skippedFiles = AtomicInteger()
+
+    /**
+     * Records that the file at [sourcePath] was uploaded successfully.
+     */
+    fun uploaded(sourcePath: String) {
+        uploadedFiles.add(sourcePath)
+    }
+
+    fun isUploaded(sourcePath: String) = uploadedFiles.contains(sourcePath)
+
+    /**
+     * Records that the remote copy of the file at [localPath] was downloaded successfully.
+     */
+    fun downloaded(localPath: String) {
+        downloadedFiles.add(localPath)
+    }
+
+    /**
+     * Records that [subject], usually the name of the uploaded file, failed because of [reason].
+     */
+    fun fail(subject: String, reason: String) {
+        failures.add(Pair(subject, reason))
+    }
+
+    /**
+     * Records that [count] files were skipped because their remote copy was already up to date.
+     */
+    fun skip(count: Int) {
+        skippedFiles.addAndGet(count)
+    }
+
+    fun hasFailures() = failures.isNotEmpty()
+
+    /**
+     * Reports how many files of the batch were uploaded and how many were skipped.
+     */
+    fun notifySummary(project: Project) {
+        Notifier.notifyInfo(project, SourcesyncBundle.message("sync.summary.message", uploadedFiles.size, skippedFiles.get()))
+    }
+
+    /**
+     * Reports how many files of the batch were downloaded and how many were skipped.
+     */
+    fun notifyDownloadSummary(project: Project) {
+        Notifier.notifyInfo(project, SourcesyncBundle.message("download.summary.message", downloadedFiles.size, skippedFiles.get()))
+    }
+
+    /**
+     * Reports the failures of the batch, with the message of [multipleFailuresKey] listing them when there are several.
+     */
+    fun notifyFailures(
+        project: Project,
+        title: String,
+        @PropertyKey(resourceBundle = "messages.SourcesyncBundle") multipleFailuresKey: String = "upload.fail.multiple.files.message"
+    ) {
+        when (failures.size) {
+            0 -> Unit
+            1 -> Notifier.notifyError(project, title, failures.first().second)
+            else -> Notifier.notifyError(
+                project,
+                title,
+                SourcesyncBundle.message(
+                    multipleFailuresKey,
+                    failures.size,
+                    failures.take(MAX_REPORTED_FAILURES).joinToString("<br/>") { (subject, reason) -> "$subject: $reason" }
+                )
+            )
+        }
+    }
+}
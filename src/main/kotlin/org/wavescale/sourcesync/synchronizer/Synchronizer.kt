@@ -1,7 +1,11 @@
 package org.wavescale.sourcesync.synchronizer
 
 import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.project.Project
 import java.nio.file.Path
+import org.wavescale.sourcesync.configurations.BaseSyncConfiguration
+import org.wavescale.sourcesync.configurations.ScpSyncConfiguration
+import org.wavescale.sourcesync.configurations.SshSyncConfiguration
 
 sealed interface Synchronizer {
     fun connect(): Boolean
@@ -12,5 +16,29 @@ sealed interface Synchronizer {
         }
     }
 
+    /**
+     * Uploads the files of every chunk handed out by [chunks] as soon as the chunk is available, which lets the upload
+     * start while the files to upload are still being discovered.
+     */
+    fun syncFileChunks(chunks: Iterator<Collection<Pair<String, Path>>>, indicator: ProgressIndicator) {
+        chunks.forEach { syncFiles(it, indicator) }
+    }
+
     fun syncFile(src: String, remoteDest: Path, indicator: ProgressIndicator)
-}
\ No newline at end of file
+
+    /**
+     * Downloads the remote copies of [src], pairs of local path and remote path relative to the workspace base path,
+     * over their local paths. Remote directories are downloaded with all the files they contain.
+     *
+     * @return the local files that were written
+     */
+    fun downloadFiles(src: Collection<Pair<Path, Path>>, indicator: ProgressIndicator): Collection<Path>
+}
+
+/**
+ * Returns a new, not yet connected, synchronizer for the protocol of [configuration].
+ */
+internal fun synchronizerFor(configuration: BaseSyncConfiguration, project: Project): Synchronizer = when (configuration) {
+    is ScpSyncConfiguration -> SCPFileSynchronizer(configuration, project)
+    is SshSyncConfiguration -> SFTPFileSynchronizer(configuration, project)
+}
@@ -0,0 +1,149 @@
+package org.wavescale.sourcesync.synchronizer
+
+import java.io.File
+import java.io.IOException
+import java.io.OutputStream
+import java.nio.file.Files
+import java.nio.file.attribute.PosixFilePermission
+
+private const val BLOCK_SIZE = 512
+private const val NAME_LENGTH = 100
+private const val PREFIX_LENGTH = 155
+private const val MAX_OCTAL_SIZE = 0x1FFFFFFFFL // 11 octal digits
+private const val GNU_LONG_NAME = "././@LongLink"
+private const val DEFAULT_MODE = 0b110_100_100L // 644
+private const val EXECUTABLE_MODE = 0b111_101_101L // 755
+
+/**
+ * Writes a POSIX ustar archive straight into [out], one file at a time, without staging anything on disk.
+ *
+ * Entry names that do not fit into the ustar name and prefix fields are written with a GNU long name entry, which is
+ * understood by both GNU and BSD tar.
+ *
+ * Every entry carries the permissions of its local file, since `tar` recreates the files it extracts and would
+ * otherwise strip the execute bit of the remote scripts it replaces.
+ */
+internal class TarArchiveWriter(private val out: OutputStream) {
+    private val zeros = ByteArray(BLOCK_SIZE * 4)
+
+    /**
+     * Appends [file] to the archive under [entryName], a relative path that uses `/` as separator.
+     *
+     * @param onBytesWritten called after every chunk of file content is written, with the size of the chunk
+     */
+    fun putFile(entryName: String, file: File, modificationTime: Long, onBytesWritten: (Int) -> Unit = {}) {
+        val size = file.length()
+        writeHeader(entryName, size, modificationTime, '0', modeOf(file))
+
+        FileContentCopier.copy(file.toPath(), size, out, onBytesWritten)
+        writeZeros(padding(size))
+    }
+
+    /**
+     * Writes the end of archive marker. The underlying stream is not closed.
+     */
+    fun finish() {
+        writeZeros(2L * BLOCK_SIZE)
+        out.flush()
+    }
+
+    /**
+     * Returns the permission bits of [file], or 644 and 755 for executables where POSIX permissions are not supported.
+     */
+    private fun modeOf(file: File): Long {
+        return try {
+            Files.getPosixFilePermissions(file.toPath()).fold(0L) { mode, permission -> mode or permissionBit(permission) }
+        } catch (e: UnsupportedOperationException) {
+            if (file.canExecute()) EXECUTABLE_MODE else DEFAULT_MODE
+        } catch (e: IOException) {
+            if (file.canExecute()) EXECUTABLE_MODE else DEFAULT_MODE
+        }
+    }
+
+    private fun permissionBit(permission: PosixFilePermission) = 1L shl (PosixFilePermission.values().size - 1 - permission.ordinal)
+
+    private fun writeHeader(entryName: String, size: Long, modificationTime: Long, type: Char, mode: Long = DEFAULT_MODE) {
+        val nameBytes = entryName.toByteArray(Charsets.UTF_8)
+        var name = nameBytes
+        var prefix = ByteArray(0)
+        if (nameBytes.size > NAME_LENGTH) {
+            val split = splitPoint(nameBytes)
+            if (split > 0) {
+                prefix = nameBytes.copyOfRange(0, split)
+                name = nameBytes.copyOfRange(split + 1, nameBytes.size)
+            } else {
+                writeLongName(nameBytes, modificationTime)
+                name = nameBytes.copyOfRange(0, NAME_LENGTH)
+            }
+        }
+
+        val header = ByteArray(BLOCK_SIZE)
+        name.copyInto(header, 0)
+        writeOctal(header, 100, 8, mode)
+        writeOctal(header, 108, 8, 0)
+        writeOctal(header, 116, 8, 0)
+        writeSize(header, size)
+        writeOctal(header, 136, 12, modificationTime)
+        header[156] = type.code.toByte()
+        "ustar".toByteArray().copyInto(header, 257)
+        "00".toByteArray().copyInto(header, 263)
+        prefix.copyInto(header, 345)
+
+        // the checksum is computed with the checksum field filled with spaces
+        for (i in 148 until 156) header[i] = ' '.code.toByte()
+        val checksum = header.sumOf { it.toInt() and 0xFF }
+        writeOctal(header, 148, 7, checksum.toLong())
+        header[155] = ' '.code.toByte()
+        out.write(header)
+    }
+
+    private fun writeLongName(nameBytes: ByteArray, modificationTime: Long) {
+        writeHeader(GNU_LONG_NAME, nameBytes.size + 1L, modificationTime, 'L')
+        out.write(nameBytes)
+        out.write(0)
+        writeZeros(padding(nameBytes.size + 1L))
+    }
+
+    /**
+     * Finds a `/` that splits the name into a prefix and a name that both fit into their ustar fields.
+     */
+    private fun splitPoint(nameBytes: ByteArray): Int {
+        for (i in minOf(PREFIX_LENGTH, nameBytes.size - 1) downTo 1) {
+            if (nameBytes[i] == '/'.code.toByte() && nameBytes.size - i - 1 <= NAME_LENGTH) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    private fun writeSize(header: ByteArray, size: Long) {
+        if (size <= MAX_OCTAL_SIZE) {
+            writeOctal(header, 124, 12, size)
+            return
+        }
+        // base-256 encoding for files bigger than 8 GiB
+        var value = size
+        for (i in 135 downTo 125) {
+            header[i] = (value and 0xFF).toByte()
+            value = value shr 8
+        }
+        header[124] = 0x80.toByte()
+    }
+
+    private fun writeOctal(header: ByteArray, offset: Int, length: Int, value: Long) {
+        val digits = java.lang.Long.toOctalString(value).padStart(length - 1, '0')
+        digits.toByteArray().copyInto(header, offset)
+        header[offset + length - 1] = 0
+    }
+
+    private fun padding(size: Long) = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE
+
+    private fun writeZeros(count: Long) {
+        var remaining = count
+        while (remaining > 0) {
+            val len = minOf(zeros.size.toLong(), remaining).toInt()
+            out.write(zeros, 0, len)
+            remaining -= len
+        }
+    }
+}
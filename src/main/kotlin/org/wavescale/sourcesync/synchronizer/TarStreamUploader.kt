@@ -0,0 +1,128 @@
+package org.wavescale.sourcesync.synchronizer
+
+import com.intellij.openapi.diagnostic.logger
+import com.intellij.openapi.progress.ProgressIndicator
+import com.jcraft.jsch.ChannelExec
+import com.jcraft.jsch.JSchException
+import com.jcraft.jsch.Session
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.IOException
+import java.nio.file.Path
+import org.wavescale.sourcesync.configurations.BaseSyncConfiguration
+
+private const val CHANNEL_CLOSE_POLL_MILLIS = 20L
+
+/**
+ * Uploads a whole batch of files as one tar archive, built on the fly and streamed into a `tar -x` process running
+ * on the remote. Compared to a per file transfer, the whole batch costs a single `exec` channel and no protocol
+ * round trip per file.
+ */
+internal class TarStreamUploader(
+    private val session: Session,
+    private val configuration: BaseSyncConfiguration,
+    private val limiter: BandwidthLimiter?,
+    private val cancellation: TransferCancellation
+) {
+
+    /**
+     * Checks whether `tar` can be executed on the remote.
+     */
+    fun isTarAvailable(): Boolean {
+        return try {
+            val channel = session.openChannel("exec") as ChannelExec
+            channel.setCommand("tar --version")
+            channel.inputStream.use { inputStream ->
+                channel.connect()
+                inputStream.readAllBytes()
+            }
+            waitForClose(channel)
+            channel.exitStatus == 0
+        } catch (e: JSchException) {
+            logger.info("Could not check if tar is available on ${configuration.hostname}", e)
+            false
+        } catch (e: IOException) {
+            logger.info("Could not check if tar is available on ${configuration.hostname}", e)
+            false
+        }
+    }
+
+    /**
+     * Streams [files] into the remote workspace base path, each file being extracted under its upload location.
+     *
+     * When the sync is canceled, the file being extracted is recorded as [interrupted][TransferCancellation.interrupted],
+     * the ones before it are kept.
+     *
+     * @return `true` if the remote `tar` process extracted the whole archive successfully
+     */
+    fun upload(files: Collection<Pair<String, Path>>, indicator: ProgressIndicator, progress: BatchProgress, report: SyncReport): Boolean {
+        val stderr = ByteArrayOutputStream()
+        var channel: ChannelExec? = null
+        var current: String? = null
+        try {
+            channel = session.openChannel("exec") as ChannelExec
+            cancellation.track(channel)
+            channel.setCommand(extractCommand())
+            channel.setErrStream(stderr, true)
+            val out = channel.outputStream.throttled(limiter)
+            channel.connect()
+
+            val archive = TarArchiveWriter(out)
+            files.forEach { (src, uploadLocation) ->
+                val file = File(src)
+                indicator.text = "Uploading...[" + file.name + "]"
+                val fileProgress = progress.file(file.length())
+                val entry = entryName(uploadLocation, file)
+                current = entry
+                archive.putFile(entry, file, file.lastModified() / 1000) {
+                    cancellation.checkCanceled()
+                    fileProgress.add(it.toLong())
+                }
+                fileProgress.done()
+            }
+            current = null
+            archive.finish()
+            out.close()
+
+            waitForClose(channel)
+            if (channel.exitStatus != 0) {
+                report.fail(configuration.hostname, "Remote tar exited with status ${channel.exitStatus}: ${stderr.toString(Charsets.UTF_8).trim()}")
+                return false
+            }
+            return true
+        } catch (e: Exception) {
+            if (cancellation.isCanceled) {
+                current?.let { cancellation.interrupted(configuration.workspaceBasePath.trimEnd('/') + "/" + it) }
+            }
+            cancellation.rethrowIfCanceled(e)
+            report.fail(configuration.hostname, "Upload to ${configuration.hostname} failed. Reason: ${e.message}")
+            return false
+        } finally {
+            channel?.let {
+                cancellation.untrack(it)
+                it.disconnect()
+            }
+        }
+    }
+
+    /**
+     * Timestamps stored in the archive are restored by `tar` by default, `-m` makes it use the extraction time instead.
+     */
+    private fun extractCommand(): String {
+        val keepTimestamps = if (configuration.preserveTimestamps) "" else " -m"
+        return "tar -x$keepTimestamps -C ${configuration.workspaceBasePath.shellQuoted()} -f -"
+    }
+
+    private fun entryName(uploadLocation: Path, file: File) = uploadLocation.resolve(file.name).joinToString("/")
+
+    private fun waitForClose(channel: ChannelExec) {
+        while (!channel.isClosed) {
+            cancellation.checkCanceled()
+            Thread.sleep(CHANNEL_CLOSE_POLL_MILLIS)
+        }
+    }
+
+    companion object {
+        private val logger = logger<TarStreamUploader>()
+    }
+}
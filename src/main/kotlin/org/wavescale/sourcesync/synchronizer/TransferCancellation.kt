@@ -0,0 +1,85 @@
+package org.wavescale.sourcesync.synchronizer
+
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.jcraft.jsch.Channel
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+
+private const val POLL_PERIOD_MILLIS = 50L
+
+/**
+ * Stops the transfers of a sync as soon as its [indicator] is canceled.
+ *
+ * The transfer loops check [checkCanceled] between chunks, but a worker blocked on the network, waiting for an
+ * acknowledgement or for the remote window to open, would only notice once the remote answers. The channels in use
+ * are therefore [tracked][track] until they are [done with][untrack], and disconnected by a watcher that polls the
+ * indicator every 50 ms, so every blocked read or write fails right away and the workers unwind with a
+ * [ProcessCanceledException].
+ *
+ * Remote files that were being written in place when the sync was canceled are [recorded][interrupted], so the
+ * synchronizer can remove them instead of leaving them truncated.
+ */
+internal class TransferCancellation(private val indicator: ProgressIndicator) : AutoCloseable {
+    private val channels = ConcurrentHashMap.newKeySet<Channel>()
+    private val interruptedFiles = ConcurrentLinkedQueue<String>()
+    private val watcher = AppExecutorUtil.getAppScheduledExecutorService()
+        .scheduleWithFixedDelay(::tearDownIfCanceled, POLL_PERIOD_MILLIS, POLL_PERIOD_MILLIS, TimeUnit.MILLISECONDS)
+
+    val isCanceled get() = indicator.isCanceled
+
+    @Throws(ProcessCanceledException::class)
+    fun checkCanceled() {
+        if (indicator.isCanceled) {
+            throw ProcessCanceledException()
+        }
+    }
+
+    /**
+     * Disconnects [channel] as soon as the sync is canceled, until it is [untracked][untrack].
+     */
+    fun track(channel: Channel) {
+        channels.add(channel)
+        // canceled before the channel was tracked
+        tearDownIfCanceled()
+    }
+
+    fun untrack(channel: Channel) {
+        channels.remove(channel)
+    }
+
+    /**
+     * Records that [remoteFile] was partially written in place when the sync was canceled.
+     */
+    fun interrupted(remoteFile: String) {
+        interruptedFiles.add(remoteFile)
+    }
+
+    fun interruptedFiles(): List<String> = interruptedFiles.toList()
+
+    /**
+     * Turns a failure caused by a torn down channel into the cancellation it really is.
+     *
+     * @throws ProcessCanceledException if the sync was canceled
+     */
+    fun rethrowIfCanceled(e: Throwable) {
+        if (e is ProcessCanceledException) {
+            throw e
+        }
+        if (indicator.isCanceled) {
+            throw ProcessCanceledException(e)
+        }
+    }
+
+    override fun close() {
+        watcher.cancel(false)
+    }
+
+    private fun tearDownIfCanceled() {
+        if (indicator.isCanceled) {
+            channels.forEach { it.disconnect() }
+        }
+    }
+}
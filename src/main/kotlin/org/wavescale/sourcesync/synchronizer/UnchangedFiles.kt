@@ -0,0 +1,30 @@
+package org.wavescale.sourcesync.synchronizer
+
+import java.io.File
+import java.nio.file.Path
+
+/**
+ * Size and modification time, in seconds, of a file found on the remote.
+ */
+internal data class RemoteFileInfo(val size: Long, val modificationTime: Long)
+
+/**
+ * Drops the files whose remote copy is already up to date: same size, and a local modification time that is not newer
+ * than the remote one. The remote clock may run behind the local one, so the remote copy is still considered up to
+ * date when it is at most [toleranceSeconds] older than the local file.
+ *
+ * The remote side is described by [listRemoteDirs], which receives every distinct upload location of the batch at once
+ * and returns the files found in each of them, by name. Locations missing from the result are uploaded as usual.
+ */
+internal fun filterChangedFiles(
+    files: Collection<Pair<String, Path>>,
+    toleranceSeconds: Int,
+    listRemoteDirs: (Set<Path>) -> Map<Path, Map<String, RemoteFileInfo>>
+): List<Pair<String, Path>> {
+    val listings = listRemoteDirs(files.mapTo(LinkedHashSet()) { (_, uploadLocation) -> uploadLocation })
+    return files.filterNot { (src, uploadLocation) ->
+        val local = File(src)
+        val remote = listings[uploadLocation]?.get(local.name) ?: return@filterNot false
+        remote.size == local.length() && local.lastModified() / 1000 <= remote.modificationTime + toleranceSeconds
+    }
+}
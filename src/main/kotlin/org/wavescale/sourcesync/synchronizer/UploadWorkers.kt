@@ -0,0 +1,43 @@
+package org.wavescale.sourcesync.synchronizer
+
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutionException
+
+/**
+ * Spreads [items] over at most [workers] upload workers. Every worker receives a `next` function that hands out the
+ * next item to upload, or `null` once the batch is drained, so a worker can keep its own channel open for as many
+ * items as it manages to take.
+ *
+ * A single worker runs directly on the calling thread, more than one run on a bounded pool and the call returns only
+ * after all of them finished.
+ */
+internal fun <T> runUploadWorkers(
+    items: Collection<T>,
+    workers: Int,
+    name: String = "Sourcesync Upload Workers",
+    worker: (next: () -> T?) -> Unit
+) {
+    val queue = ConcurrentLinkedQueue(items)
+    val workerCount = workers.coerceIn(1, items.size.coerceAtLeast(1))
+    if (workerCount == 1) {
+        worker(queue::poll)
+        return
+    }
+
+    val executor = AppExecutorUtil.createBoundedApplicationPoolExecutor(name, workerCount)
+    try {
+        val futures = (1..workerCount).map {
+            executor.submit { worker(queue::poll) }
+        }
+        futures.forEach {
+            try {
+                it.get()
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+        }
+    } finally {
+        executor.shutdown()
+    }
+}
@@ -11,6 +11,7 @@ import com.intellij.ui.dsl.builder.COLUMNS_MEDIUM
 import com.intellij.ui.dsl.builder.COLUMNS_TINY
 import com.intellij.ui.dsl.builder.RowLayout
 import com.intellij.ui.dsl.builder.TopGap
+import com.intellij.ui.dsl.builder.bindIntText
 import com.intellij.ui.dsl.builder.bindItem
 import com.intellij.ui.dsl.builder.bindSelected
 import com.intellij.ui.dsl.builder.bindText
@@ -22,10 +23,17 @@ import com.intellij.ui.layout.ComponentPredicate
 import com.intellij.util.ui.JBUI
 import org.wavescale.sourcesync.SourcesyncBundle
 import org.wavescale.sourcesync.configurations.AuthenticationType
+import org.wavescale.sourcesync.configurations.CompressionPolicy
 import org.wavescale.sourcesync.configurations.BaseSyncConfiguration
+import org.wavescale.sourcesync.configurations.SyncConfigurationType
 import javax.swing.JLabel
 import javax.swing.event.DocumentEvent
 
+private const val MAX_SFTP_WRITE_WINDOW = 1024
+private const val MAX_UPLOAD_WORKERS = 16
+private const val MAX_CLOCK_SKEW_TOLERANCE = 3600
+private const val MAX_BANDWIDTH_LIMIT_KIB = 10 * 1024 * 1024
+
 class ConnectionConfigurationComponent(private val project: Project, private val model: BaseSyncConfiguration, onModification: () -> Unit) {
     private val original = model.clone()
     private lateinit var cb: ComboBox<AuthenticationType>
@@ -176,7 +184,8 @@ class ConnectionConfigurationComponent(private val project: Project, private val
 
         row {
             label(SourcesyncBundle.message("sync.editor.skip.extensions.label"))
-            textField().columns(12).bindText(model::excludedFiles).applyToComponent {
+            textField().columns(COLUMNS_MEDIUM).bindText(model::excludedFiles).applyToComponent {
+                toolTipText = SourcesyncBundle.message("sync.editor.skip.extensions.tooltip")
                 document.addDocumentListener(object : DocumentAdapter() {
                     override fun textChanged(e: DocumentEvent) {
                         onModification()
@@ -184,6 +193,26 @@ class ConnectionConfigurationComponent(private val project: Project, private val
                 })
             }
         }.layout(RowLayout.INDEPENDENT)
+        row {
+            checkBox(SourcesyncBundle.message("sync.editor.use.gitignore.label"))
+                .bindSelected(model::useGitignore)
+                .onChanged {
+                    onModification()
+                }
+                .applyToComponent {
+                    toolTipText = SourcesyncBundle.message("sync.editor.use.gitignore.tooltip")
+                }
+        }.layout(RowLayout.INDEPENDENT)
+        row {
+            checkBox(SourcesyncBundle.message("sync.editor.auto.sync.label"))
+                .bindSelected(model::autoSyncOnSave)
+                .onChanged {
+                    onModification()
+                }
+                .applyToComponent {
+                    toolTipText = SourcesyncBundle.message("sync.editor.auto.sync.tooltip")
+                }
+        }.layout(RowLayout.INDEPENDENT)
         row {
             checkBox(SourcesyncBundle.message("sync.editor.timestamps.label"))
                 .bindSelected(model::preserveTimestamps)
@@ -191,6 +220,104 @@ class ConnectionConfigurationComponent(private val project: Project, private val
                     onModification()
                 }
         }.layout(RowLayout.INDEPENDENT)
+        row {
+            label(SourcesyncBundle.message("sync.editor.compression.label"))
+            comboBox(CompressionPolicy.values().asList(), SimpleListCellRenderer.create("") { it.prettyName })
+                .bindItem(model::compressionPolicy.toNullableProperty())
+                .onChanged {
+                    onModification()
+                }
+                .applyToComponent {
+                    toolTipText = SourcesyncBundle.message("sync.editor.compression.tooltip")
+                }
+        }.layout(RowLayout.INDEPENDENT)
+        row {
+            checkBox(SourcesyncBundle.message("sync.editor.tar.stream.label"))
+                .bindSelected(model::tarStreamUploads)
+                .onChanged {
+                    onModification()
+                }
+                .applyToComponent {
+                    toolTipText = SourcesyncBundle.message("sync.editor.tar.stream.tooltip")
+                }
+        }.layout(RowLayout.INDEPENDENT)
+        row {
+            checkBox(SourcesyncBundle.message("sync.editor.delta.transfers.label"))
+                .bindSelected(model::deltaTransfers)
+                .onChanged {
+                    onModification()
+                }
+                .applyToComponent {
+                    toolTipText = SourcesyncBundle.message("sync.editor.delta.transfers.tooltip")
+                }
+        }.layout(RowLayout.INDEPENDENT)
+        row {
+            checkBox(SourcesyncBundle.message("sync.editor.skip.unchanged.label"))
+                .bindSelected(model::skipUnchanged)
+                .onChanged {
+                    onModification()
+                }
+                .applyToComponent {
+                    toolTipText = SourcesyncBundle.message("sync.editor.skip.unchanged.tooltip")
+                }
+        }.layout(RowLayout.INDEPENDENT)
+        row {
+            checkBox(SourcesyncBundle.message("sync.editor.content.manifest.label"))
+                .bindSelected(model::contentManifest)
+                .onChanged {
+                    onModification()
+                }
+                .applyToComponent {
+                    toolTipText = SourcesyncBundle.message("sync.editor.content.manifest.tooltip")
+                }
+        }.layout(RowLayout.INDEPENDENT)
+        row {
+            label(SourcesyncBundle.message("sync.editor.clock.skew.tolerance.label"))
+            intTextField(0..MAX_CLOCK_SKEW_TOLERANCE).columns(COLUMNS_TINY).bindIntText(model::clockSkewTolerance).applyToComponent {
+                toolTipText = SourcesyncBundle.message("sync.editor.clock.skew.tolerance.tooltip")
+                document.addDocumentListener(object : DocumentAdapter() {
+                    override fun textChanged(e: DocumentEvent) {
+                        onModification()
+                    }
+                })
+            }
+        }.layout(RowLayout.INDEPENDENT)
+
+        row {
+            label(SourcesyncBundle.message("sync.editor.sftp.write.window.label"))
+            intTextField(1..MAX_SFTP_WRITE_WINDOW).columns(COLUMNS_TINY).bindIntText(model::sftpWriteWindow).applyToComponent {
+                toolTipText = SourcesyncBundle.message("sync.editor.sftp.write.window.tooltip")
+                document.addDocumentListener(object : DocumentAdapter() {
+                    override fun textChanged(e: DocumentEvent) {
+                        onModification()
+                    }
+                })
+            }
+        }.layout(RowLayout.INDEPENDENT).visible(model.protocol == SyncConfigurationType.SFTP)
+
+        row {
+            label(SourcesyncBundle.message("sync.editor.upload.workers.label"))
+            intTextField(1..MAX_UPLOAD_WORKERS).columns(COLUMNS_TINY).bindIntText(model::uploadWorkers).applyToComponent {
+                toolTipText = SourcesyncBundle.message("sync.editor.upload.workers.tooltip")
+                document.addDocumentListener(object : DocumentAdapter() {
+                    override fun textChanged(e: DocumentEvent) {
+                        onModification()
+                    }
+                })
+            }
+        }.layout(RowLayout.INDEPENDENT)
+
+        row {
+            label(SourcesyncBundle.message("sync.editor.bandwidth.limit.label"))
+            intTextField(0..MAX_BANDWIDTH_LIMIT_KIB).columns(COLUMNS_TINY).bindIntText(model::bandwidthLimitKiB).applyToComponent {
+                toolTipText = SourcesyncBundle.message("sync.editor.bandwidth.limit.tooltip")
+                document.addDocumentListener(object : DocumentAdapter() {
+                    override fun textChanged(e: DocumentEvent) {
+                        onModification()
+                    }
+                })
+            }
+        }.layout(RowLayout.INDEPENDENT)
 
     }.apply {
         border = JBUI.Borders.empty(15, 5, 0, 15)
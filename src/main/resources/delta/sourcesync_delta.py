@@ -0,0 +1,81 @@
+# Remote side of the Sourcesync delta transfer. The script is sent inline over an SSH exec channel, it is never
+# installed on the remote. It runs with any Python 3 and only uses the standard library.
+#
+#   sig   <path> <block_size>          prints the size of <path> followed by the adler32 and md5 of every full block
+#   patch <path> <block_size> <mtime>  rebuilds <path> from the delta read on stdin, then atomically replaces it
+import hashlib
+import os
+import shutil
+import struct
+import sys
+import zlib
+
+
+def read_exactly(stream, length):
+    data = stream.read(length)
+    if len(data) != length:
+        raise EOFError("unexpected end of delta stream")
+    return data
+
+
+def signatures(path, block_size):
+    out = sys.stdout.buffer
+    try:
+        size = os.path.getsize(path)
+    except OSError:
+        out.write(struct.pack(">q", -1))
+        return
+    out.write(struct.pack(">q", size))
+    with open(path, "rb") as source:
+        while True:
+            block = source.read(block_size)
+            if len(block) < block_size:
+                break
+            out.write(struct.pack(">I", zlib.adler32(block) & 0xFFFFFFFF))
+            out.write(hashlib.md5(block).digest())
+    out.flush()
+
+
+def patch(path, block_size, mtime):
+    delta = sys.stdin.buffer
+    tmp = path + ".sourcesync-delta"
+    digest = hashlib.md5()
+    replaced = False
+    try:
+        with open(path, "rb") as old, open(tmp, "wb") as new:
+            while True:
+                op = read_exactly(delta, 1)
+                if op == b"B":
+                    (index,) = struct.unpack(">q", read_exactly(delta, 8))
+                    old.seek(index * block_size)
+                    data = old.read(block_size)
+                elif op == b"L":
+                    (length,) = struct.unpack(">I", read_exactly(delta, 4))
+                    data = read_exactly(delta, length)
+                elif op == b"E":
+                    expected = read_exactly(delta, 16)
+                    break
+                else:
+                    raise ValueError("unknown delta operation %r" % op)
+                new.write(data)
+                digest.update(data)
+        if digest.digest() != expected:
+            sys.stderr.write("checksum mismatch after applying the delta to %s\n" % path)
+            sys.exit(2)
+        shutil.copymode(path, tmp)
+        if mtime >= 0:
+            os.utime(tmp, (mtime, mtime))
+        os.replace(tmp, path)
+        replaced = True
+    finally:
+        # a truncated stream, a full disk or a canceled sync must not leave the temporary file behind
+        if not replaced:
+            try:
+                os.remove(tmp)
+            except OSError:
+                pass
+
+if sys.argv[1] == "sig":
+    signatures(sys.argv[2], int(sys.argv[3]))
+elif sys.argv[1] == "patch":
+    patch(sys.argv[2], int(sys.argv[3]), int(sys.argv[4]))